@@ -0,0 +1,35 @@
+package ca.ozluminaire.partypresence;
+
+import io.micronaut.core.annotation.TypeHint;
+
+// Reflection hints for the native image, turned into reflect-config.json by the micronaut-graal annotation processor.
+// The generated protobuf classes are accessed reflectively by the GeneratedMessageV3 field accessors (toString,
+// TextFormat), and HashedWheelTimer updates its state through AtomicIntegerFieldUpdaters. NativeImageHintsTest fails
+// when a message or enum in the proto files is missing here.
+@TypeHint(
+        value = {
+                ClientMessage.class, ClientMessage.Builder.class,
+                ClientSessionIdEntry.class, ClientSessionIdEntry.Builder.class,
+                CompactParticipantList.class, CompactParticipantList.Builder.class,
+                PartyPresenceRequest.class, PartyPresenceRequest.Builder.class,
+                PartyPresence.class, PartyPresence.Builder.class,
+                MultiPartyPresenceRequest.class, MultiPartyPresenceRequest.Builder.class,
+                MultiPartyPresenceResponse.class, MultiPartyPresenceResponse.Builder.class,
+                ClientPresenceRequest.class, ClientPresenceRequest.Builder.class,
+                ClientPresence.class, ClientPresence.Builder.class,
+                ClientPresenceResponse.class, ClientPresenceResponse.Builder.class,
+                DrainRequest.class, DrainRequest.Builder.class,
+                DrainResponse.class, DrainResponse.Builder.class,
+                ClientMessageType.class, StatusCode.class, ListEncoding.class
+        },
+        typeNames = {
+                "io.netty.util.HashedWheelTimer",
+                "io.netty.util.HashedWheelTimer$HashedWheelTimeout"
+        },
+        accessType = {TypeHint.AccessType.ALL_DECLARED_FIELDS, TypeHint.AccessType.ALL_PUBLIC_METHODS}
+)
+final class NativeImageHints {
+
+    private NativeImageHints() {
+    }
+}
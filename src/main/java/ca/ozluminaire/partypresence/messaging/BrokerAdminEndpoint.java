@@ -0,0 +1,38 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import ca.ozluminaire.partypresence.BrokerAdminGrpc;
+import ca.ozluminaire.partypresence.DrainRequest;
+import ca.ozluminaire.partypresence.DrainResponse;
+import io.grpc.stub.StreamObserver;
+import io.micronaut.context.annotation.Requires;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+
+/**
+ * Operational calls of a broker node. It is served on the same gRPC port as the clients, and has no authentication,
+ * so it is only registered with party-presence-message-broker.admin.enabled, on nodes whose port clients cannot reach
+ * directly.
+ */
+@Singleton
+@Slf4j
+@Requires(property = "party-presence-message-broker.admin.enabled", value = "true")
+public class BrokerAdminEndpoint extends BrokerAdminGrpc.BrokerAdminImplBase {
+
+    private final DrainService drainService;
+
+    public BrokerAdminEndpoint(DrainService drainService) {
+        this.drainService = drainService;
+    }
+
+    @Override
+    public void drain(DrainRequest request, StreamObserver<DrainResponse> responseObserver) {
+        Duration reconnectWindow = request.getReconnectWindowMillis() > 0
+                ? Duration.ofMillis(request.getReconnectWindowMillis()) : null;
+        responseObserver.onNext(DrainResponse.newBuilder()
+                .setDrainedStreams(drainService.drain(reconnectWindow))
+                .build());
+        responseObserver.onCompleted();
+    }
+}
@@ -2,17 +2,23 @@ package ca.ozluminaire.partypresence.messaging;
 
 import ca.ozluminaire.partypresence.ClientMessage;
 import ca.ozluminaire.partypresence.ClientMessageType;
+import ca.ozluminaire.partypresence.ListEncoding;
 import ca.ozluminaire.partypresence.StatusCode;
 import ca.ozluminaire.partypresence.model.Client;
 import ca.ozluminaire.partypresence.model.Party;
 import ca.ozluminaire.partypresence.model.Session;
+import ca.ozluminaire.partypresence.model.SessionState;
 import ca.ozluminaire.partypresence.service.ClientService;
 import ca.ozluminaire.partypresence.service.PartyService;
 import ca.ozluminaire.partypresence.service.SessionService;
+import ca.ozluminaire.partypresence.service.ShardService;
+import ca.ozluminaire.partypresence.util.MessageIdGenerator;
 import io.grpc.stub.StreamObserver;
 import jakarta.inject.Singleton;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.List;
+
 import static ca.ozluminaire.partypresence.util.ClientMessageUtil.buildAckMessage;
 import static ca.ozluminaire.partypresence.util.ClientMessageUtil.getBuilderFor;
 
@@ -24,17 +30,36 @@ public class ClientMessageProcessor {
     private final ClientService clientService;
     private final PartyService partyService;
     private final KeepaliveService keepaliveService;
+    private final DrainService drainService;
+    private final ShardService shardService;
+    private final MessageIdGenerator messageIdGenerator;
 
-    public ClientMessageProcessor(SessionService sessionService, ClientService clientService, PartyService partyService, KeepaliveService keepaliveService) {
+    public ClientMessageProcessor(SessionService sessionService, ClientService clientService, PartyService partyService,
+                                  KeepaliveService keepaliveService, DrainService drainService,
+                                  ShardService shardService, MessageIdGenerator messageIdGenerator) {
         this.sessionService = sessionService;
         this.clientService = clientService;
         this.partyService = partyService;
         this.keepaliveService = keepaliveService;
+        this.drainService = drainService;
+        this.shardService = shardService;
+        this.messageIdGenerator = messageIdGenerator;
     }
 
-    void processMessage(SessionReference sessionRef, StreamObserver<ClientMessage> responseObserver,
+    // With sharding, the messages of a stream are processed one at a time on its home shard, and only the changes to
+    // a party's membership and interest index are handed to the shard of that party. Sessions are touched from both,
+    // and are guarded by their own lock
+    void processMessage(SessionReference sessionRef, SerializingStreamObserver<ClientMessage> responseObserver,
                         ClientMessage clientMessage) {
 
+        final Session duplicateTarget = findDuplicateTarget(sessionRef, clientMessage);
+        if (duplicateTarget != null) {
+            log.debug("Acking duplicate message {} from {}", clientMessage.getMessageId(), duplicateTarget);
+            duplicateTarget.sendAck(buildAckMessage(clientMessage.getMessageId()));
+            keepaliveService.setKeepaliveTimer(sessionRef);
+            return;
+        }
+
         switch (clientMessage.getMessageType()) {
             case JOIN:
                 processJoinMessage(sessionRef, clientMessage, responseObserver);
@@ -43,46 +68,79 @@ public class ClientMessageProcessor {
                 processLeaveMessage(sessionRef, clientMessage);
                 break;
             case PING:
-                processPingMessage(sessionRef, clientMessage);
+                processPingMessage(sessionRef, clientMessage, responseObserver);
                 break;
             case ACK:
                 processAckMessage(sessionRef, clientMessage);
                 break;
+            case INTEREST:
+                processInterestMessage(sessionRef, clientMessage);
+                break;
             default:
                 return;
         }
 
-        if (sessionRef.getSession() != null) {
-            keepaliveService.setKeepaliveTimer(sessionRef);
-        }
+        keepaliveService.setKeepaliveTimer(sessionRef);
     }
 
-    // Suspend the session and close the transport. The client may reconnect with the same session ID to resume if it wants
-    void processError(SessionReference sessionRef) {
-        sessionService.unbindSession(sessionRef.getSession());
+    // JOIN, LEAVE and INTEREST messages have side effects, so retries of them are deduplicated by message ID.
+    // PINGs and ACKs are idempotent and are not tracked. Returns the target session if the message is a duplicate
+    private Session findDuplicateTarget(SessionReference sessionRef, ClientMessage clientMessage) {
+        if (clientMessage.getMessageId() == 0) {
+            return null;
+        }
+        final Session session;
+        switch (clientMessage.getMessageType()) {
+            case JOIN:
+                session = sessionRef.getSession(clientMessage.getPartyId());
+                break;
+            case LEAVE:
+            case INTEREST:
+                session = sessionRef.resolveSession(clientMessage.getPartyId());
+                break;
+            default:
+                return null;
+        }
+        return session != null && !session.getInboundMessageIds().add(clientMessage.getMessageId()) ? session : null;
     }
 
-    // process client disconnect
-    void processCompleted(SessionReference sessionRef) {
-        sessionService.unbindSession(sessionRef.getSession());
+    // Suspend the sessions still bound to the closed stream and drop their outgoing messages. Runs for client
+    // disconnects and errors, and for every stream closed by the server. The client may reconnect with the same
+    // session IDs to resume if it wants
+    void processClosed(SessionReference sessionRef, StreamObserver<ClientMessage> responseObserver) {
+        sessionRef.setClosed(true);
+        for (Session session : sessionRef.getSessions()) {
+            synchronized (session) {
+                if (session.getResponseObserver() == responseObserver) {
+                    sessionService.unbindSession(session);
+                    session.clearQueues();
+                }
+            }
+        }
     }
 
+    // deleting the session detaches it from the stream, which closes the stream if no other parties are multiplexed over it
     void processLeaveMessage(SessionReference sessionRef, ClientMessage clientMessage) {
-        if (sessionRef.getSession() != null) {
-            Session session = sessionRef.getSession();
-            session.getParty().removeSession(session);
+        Session session = sessionRef.resolveSession(clientMessage.getPartyId());
+        if (session != null) {
+            final Party party = session.getParty();
+            onPartyShard(party, () -> party.removeSession(session));
 
-            session.queueMessage(buildAckMessage(clientMessage.getMessageId()));
-            session.sendQueuedMessages();
+            session.sendAck(buildAckMessage(clientMessage.getMessageId()));
 
             sessionService.deleteSession(session);
-
-            sessionRef.setSession(null);
         }
     }
 
-    void processJoinMessage(SessionReference sessionRef, ClientMessage clientMessage, StreamObserver<ClientMessage> responseObserver) {
-        if (sessionRef.getSession() != null) {
+    void processJoinMessage(SessionReference sessionRef, ClientMessage clientMessage,
+                            SerializingStreamObserver<ClientMessage> responseObserver) {
+        if (sessionRef.getSession(clientMessage.getPartyId()) != null) {
+            return;
+        }
+
+        if (drainService.isDraining()) {
+            log.info("Rejecting a join to party {} on responseObserver {} while draining", clientMessage.getPartyId(), responseObserver.hashCode());
+            rejectJoinMessage(sessionRef, clientMessage, responseObserver, StatusCode.DRAINING);
             return;
         }
 
@@ -90,37 +148,117 @@ public class ClientMessageProcessor {
         Client client = clientService.getClient(clientMessage.getClientId());
         // TODO - null checks for party and client. (irrelevant here because there's no special party/client creation routine)
 
-        if (sessionService.hasSession(clientMessage.getSessionId())) {
-            Session existingSession = sessionService.getSession(clientMessage.getSessionId());
-            if (!existingSession.getClient().equals(client)) {
+        final Session activeSession = sessionRef.getActiveSession();
+        if (activeSession != null && !activeSession.getClient().equals(client)) {
+            log.warn("Cannot join {} to {} on responseObserver {} because the stream belongs to {}", client, party,
+                    responseObserver.hashCode(), activeSession.getClient());
+            rejectJoinMessage(sessionRef, clientMessage, responseObserver, StatusCode.CLIENT_ID_MISMATCH);
+            return;
+        }
+
+        Session existingSession = sessionService.getSession(clientMessage.getSessionId());
+        if (existingSession != null) {
+            if (!existingSession.getClient().equals(client) || !existingSession.getParty().equals(party)) {
                 log.warn("Cannot create a session for {} on responseObserver {} because {} already exists", client, responseObserver.hashCode(), existingSession);
-                responseObserver.onNext(getBuilderFor(ClientMessageType.ERROR)
-                        .setSessionId(clientMessage.getSessionId())
-                        .setStatusCode(StatusCode.SESSION_ID_IN_USE).build());
-                responseObserver.onCompleted();
+                rejectJoinMessage(sessionRef, clientMessage, responseObserver, StatusCode.SESSION_ID_IN_USE);
                 return;
             }
+            // a resumed session leaves the stream it was bound to before
+            existingSession.detach();
+        }
+
+        if (!sessionRef.hasSessions()) {
+            negotiateListEncoding(sessionRef, clientMessage.getListEncoding(), responseObserver);
         }
 
-        Session session = sessionService.createOrResumeSession(clientMessage.getSessionId(), client, party, responseObserver);
-        session.queueMessage(buildAckMessage(clientMessage.getMessageId()));
-        session.sendQueuedMessages();
+        Session resumedSession = sessionService.createOrResumeSession(clientMessage.getSessionId(), client, party, responseObserver);
+        // the session timed out on its party's shard while it was being resumed, so the JOIN creates a new session
+        final Session session = resumedSession.getSessionState() == SessionState.EXPIRED
+                ? sessionService.createOrResumeSession(clientMessage.getSessionId(), client, party, responseObserver)
+                : resumedSession;
+        session.setListEncoding(sessionRef.getListEncoding());
+        session.sendAck(buildAckMessage(clientMessage.getMessageId()));
+
+        session.getInboundMessageIds().add(clientMessage.getMessageId());
+
+        final List<Long> interestClientIds = clientMessage.getInterestClientIdsList();
+        onPartyShard(party, () -> party.addSession(session, interestClientIds));
 
-        party.addSession(session);
+        sessionRef.addSession(session);
+        session.setDetachHandler(detachedSession -> detachSession(sessionRef, responseObserver, detachedSession));
 
-        sessionRef.setSession(session);
+        // the stream was closed by the server while the session was bound to it, and its close handler may have
+        // missed the session. It is unbound like the other sessions of the stream, and can be resumed elsewhere
+        if (sessionRef.isClosed()) {
+            processClosed(sessionRef, responseObserver);
+        }
+    }
+
+    // runs inline if already on the party's shard, or with sharding disabled
+    private void onPartyShard(Party party, Runnable task) {
+        shardService.execute(shardService.shardOf(party.getId()), task);
+    }
+
+    // the stream is closed with the last session multiplexed over it
+    private void detachSession(SessionReference sessionRef, StreamObserver<ClientMessage> responseObserver, Session session) {
+        sessionRef.removeSession(session);
+        if (!sessionRef.hasSessions()) {
+            responseObserver.onCompleted();
+        }
+    }
+
+    // compression has to be set up before the JOIN ack, the first message on the stream, sends the response headers
+    private void negotiateListEncoding(SessionReference sessionRef, ListEncoding listEncoding,
+                                       SerializingStreamObserver<ClientMessage> responseObserver) {
+        sessionRef.setListEncoding(listEncoding == ListEncoding.UNRECOGNIZED ? ListEncoding.LIST_ENCODING_STANDARD : listEncoding);
+        if (listEncoding == ListEncoding.LIST_ENCODING_COMPACT_COMPRESSED) {
+            responseObserver.compressMessages(message -> message.getMessageType() == ClientMessageType.LIST);
+        }
+    }
+
+    // the transport is only closed if no other parties are multiplexed over it
+    private void rejectJoinMessage(SessionReference sessionRef, ClientMessage clientMessage,
+                                   StreamObserver<ClientMessage> responseObserver, StatusCode statusCode) {
+        responseObserver.onNext(getBuilderFor(ClientMessageType.ERROR, messageIdGenerator.nextId())
+                .setSessionId(clientMessage.getSessionId())
+                .setPartyId(clientMessage.getPartyId())
+                .setStatusCode(statusCode).build());
+        if (!sessionRef.hasSessions()) {
+            responseObserver.onCompleted();
+        }
     }
 
     void processAckMessage(SessionReference sessionRef, ClientMessage clientMessage) {
-        if (sessionRef.getSession() != null) {
-            clientMessage.getAckMessageIdsList().forEach(id -> sessionRef.getSession().ackMessage(id));
+        final Session[] sessions = sessionRef.getSessions();
+        for (int i = 0; i < clientMessage.getAckMessageIdsCount(); i++) {
+            final long messageId = clientMessage.getAckMessageIds(i);
+            for (Session session : sessions) {
+                if (session.ackMessage(messageId)) {
+                    break;
+                }
+            }
         }
     }
 
-    void processPingMessage(SessionReference sessionRef, ClientMessage clientMessage) {
-        if (sessionRef.getSession() != null) {
-            sessionRef.getSession().queueMessage(buildAckMessage(clientMessage.getMessageId()));
-            sessionRef.getSession().sendQueuedMessages();
+    // PINGs keep the whole stream alive, so a single ACK is sent for all the sessions multiplexed over it. It goes
+    // through a session bound to the stream, behind that session's control messages, or straight to the stream if none is
+    void processPingMessage(SessionReference sessionRef, ClientMessage clientMessage, StreamObserver<ClientMessage> responseObserver) {
+        final Session session = sessionRef.getActiveSession();
+        if (session != null) {
+            session.sendAck(buildAckMessage(clientMessage.getMessageId()));
+        } else {
+            responseObserver.onNext(buildAckMessage(clientMessage.getMessageId()));
+        }
+    }
+
+    void processInterestMessage(SessionReference sessionRef, ClientMessage clientMessage) {
+        Session session = sessionRef.resolveSession(clientMessage.getPartyId());
+        if (session != null) {
+            session.sendAck(buildAckMessage(clientMessage.getMessageId()));
+
+            final Party party = session.getParty();
+            final List<Long> interestClientIds = clientMessage.getInterestClientIdsList();
+            onPartyShard(party, () -> party.updateInterest(session, interestClientIds));
         }
     }
 }
@@ -1,39 +1,90 @@
 package ca.ozluminaire.partypresence.messaging;
 
 import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
 import ca.ozluminaire.partypresence.ClientMessagingEndpointGrpc;
+import ca.ozluminaire.partypresence.StatusCode;
+import ca.ozluminaire.partypresence.model.Session;
+import ca.ozluminaire.partypresence.service.ShardService;
+import ca.ozluminaire.partypresence.util.MessageIdGenerator;
 import io.grpc.stub.StreamObserver;
 import jakarta.inject.Singleton;
 import lombok.extern.slf4j.Slf4j;
 
+import static ca.ozluminaire.partypresence.util.ClientMessageUtil.getBuilderFor;
+
 @Singleton
 @Slf4j
 public class ClientMessagingEndpoint extends ClientMessagingEndpointGrpc.ClientMessagingEndpointImplBase {
 
     private final ClientMessageProcessor clientMessageProcessor;
+    private final InboundRateLimiter inboundRateLimiter;
+    private final ShardService shardService;
+    private final MessageIdGenerator messageIdGenerator;
 
-    public ClientMessagingEndpoint(ClientMessageProcessor clientMessageProcessor) {
+    public ClientMessagingEndpoint(ClientMessageProcessor clientMessageProcessor, InboundRateLimiter inboundRateLimiter,
+                                   ShardService shardService, MessageIdGenerator messageIdGenerator) {
         this.clientMessageProcessor = clientMessageProcessor;
+        this.inboundRateLimiter = inboundRateLimiter;
+        this.shardService = shardService;
+        this.messageIdGenerator = messageIdGenerator;
     }
 
     @Override
-    public StreamObserver<ClientMessage> beginStream(StreamObserver<ClientMessage> responseObserver) {
+    public StreamObserver<ClientMessage> beginStream(StreamObserver<ClientMessage> grpcResponseObserver) {
 
-        return new StreamObserver<>() {
+        // shared by the sessions of every party multiplexed over the stream
+        final SerializingStreamObserver<ClientMessage> responseObserver = new SerializingStreamObserver<>(grpcResponseObserver);
+        final SessionReference sessionRef = new SessionReference(inboundRateLimiter.newSessionRateLimiter());
+        final InboundDispatcher inboundDispatcher = new InboundDispatcher(sessionRef, responseObserver);
+
+        // server side closes, like shedding an overloaded session, unbind every session multiplexed over the stream
+        responseObserver.setOnCloseHandler(() -> clientMessageProcessor.processClosed(sessionRef, responseObserver));
+
+        // presence messages held back while the transport was busy are sent once it catches up,
+        // by the shard that owns the session's party
+        responseObserver.setOnReadyHandler(() -> {
+            for (Session session : sessionRef.getSessions()) {
+                shardService.execute(shardService.shardOf(session.getParty().getId()), session::sendQueuedMessages);
+            }
+        });
 
-            private final SessionReference sessionRef = new SessionReference();
+        // the next message is only requested once the previous one is processed, so a client cannot queue up work on
+        // the shards faster than they process it, and gRPC flow control pushes back on the client instead
+        responseObserver.disableAutoInboundFlowControl();
+        responseObserver.request(1);
+
+        return new StreamObserver<>() {
 
             @Override
             public void onNext(ClientMessage value) {
-                log.debug("Message received from {}, content: {}", responseObserver.hashCode(), value.toString());
-                clientMessageProcessor.processMessage(sessionRef, responseObserver, value);
+                if (log.isDebugEnabled()) {
+                    log.debug("Message received from {}, content: {}", responseObserver.hashCode(), value);
+                }
+                switch (inboundRateLimiter.admit(sessionRef, value)) {
+                    case ADMIT:
+                        inboundDispatcher.dispatch(value);
+                        break;
+                    case THROTTLE:
+                        responseObserver.onNext(getBuilderFor(ClientMessageType.ERROR, messageIdGenerator.nextId())
+                                .setStatusCode(StatusCode.THROTTLED).build());
+                        responseObserver.request(1);
+                        break;
+                    case DISCONNECT:
+                        responseObserver.onNext(getBuilderFor(ClientMessageType.ERROR, messageIdGenerator.nextId())
+                                .setStatusCode(StatusCode.THROTTLED).build());
+                        closeStream(sessionRef, responseObserver);
+                        break;
+                    default:
+                        responseObserver.request(1);
+                        break;
+                }
             }
 
             @Override
             public void onError(Throwable t) {
                 log.warn("An error occurred in {}, cause: {}", responseObserver.hashCode(), t.getMessage());
-                clientMessageProcessor.processError(sessionRef);
-                responseObserver.onCompleted();
+                closeStream(sessionRef, responseObserver);
             }
 
             @Override
@@ -43,10 +94,58 @@ public class ClientMessagingEndpoint extends ClientMessagingEndpointGrpc.ClientM
                    if session TTL has not expired.
                    Implicit LEAVE messages will delete the session and then close the transport. */
                 log.warn("The stream closed for {}", responseObserver.hashCode());
-                clientMessageProcessor.processCompleted(sessionRef);
-                responseObserver.onCompleted();
+                closeStream(sessionRef, responseObserver);
             }
         };
     }
 
+    // with sharding, the stream is closed by its home shard after the message already dispatched to it
+    // a failed send closes the observer without running its close handler, so the sessions are unbound here as well
+    private void closeStream(SessionReference sessionRef, StreamObserver<ClientMessage> responseObserver) {
+        shardService.execute(Math.max(sessionRef.getHomeShard(), 0), () -> {
+            clientMessageProcessor.processClosed(sessionRef, responseObserver);
+            responseObserver.onCompleted();
+        });
+    }
+
+    /**
+     * Processes the messages of a stream one at a time, on the home shard of the stream with sharding enabled, and
+     * requests the next message from gRPC once done. The home shard is the shard of the first party the stream
+     * joined, so single party streams never leave their party's shard. Since at most one message is outstanding,
+     * the dispatcher is reused for every message of the stream instead of allocating a task per message.
+     */
+    private final class InboundDispatcher implements Runnable {
+
+        private final SessionReference sessionRef;
+        private final SerializingStreamObserver<ClientMessage> responseObserver;
+
+        // handed over to the shard thread through the executor's task queue
+        private ClientMessage pendingMessage;
+
+        private InboundDispatcher(SessionReference sessionRef, SerializingStreamObserver<ClientMessage> responseObserver) {
+            this.sessionRef = sessionRef;
+            this.responseObserver = responseObserver;
+        }
+
+        // only called from the stream's inbound calls, which gRPC never runs concurrently
+        void dispatch(ClientMessage message) {
+            if (sessionRef.getHomeShard() < 0 && message.getMessageType() == ClientMessageType.JOIN) {
+                sessionRef.setHomeShard(shardService.shardOf(message.getPartyId()));
+            }
+            pendingMessage = message;
+            shardService.execute(Math.max(sessionRef.getHomeShard(), 0), this);
+        }
+
+        @Override
+        public void run() {
+            final ClientMessage message = pendingMessage;
+            pendingMessage = null;
+            try {
+                clientMessageProcessor.processMessage(sessionRef, responseObserver, message);
+            } finally {
+                responseObserver.request(1);
+            }
+        }
+    }
+
 }
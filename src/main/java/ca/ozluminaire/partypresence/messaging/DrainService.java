@@ -0,0 +1,135 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
+import ca.ozluminaire.partypresence.model.Session;
+import ca.ozluminaire.partypresence.model.SessionState;
+import ca.ozluminaire.partypresence.service.SessionService;
+import ca.ozluminaire.partypresence.util.MessageIdGenerator;
+import io.grpc.stub.StreamObserver;
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.context.annotation.Value;
+import io.micronaut.scheduling.TaskExecutors;
+import io.micronaut.scheduling.TaskScheduler;
+import jakarta.inject.Named;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static ca.ozluminaire.partypresence.util.ClientMessageUtil.getBuilderFor;
+
+/**
+ * Drains a broker node before it is taken down, without a reconnect storm on the remaining nodes.
+ * <p>
+ * Once draining, the node rejects JOIN messages, and every stream is sent a DRAIN message with a reconnect delay
+ * drawn uniformly from the reconnect window. Sessions stay resumable until the keepalive timeout like after any other
+ * ungraceful disconnect. The node shuts down when no streams are left, or when the drain timeout elapses.
+ */
+@Slf4j
+@Singleton
+public class DrainService {
+
+    @Value("${party-presence-message-broker.drain.reconnect-window:30s}")
+    private Duration reconnectWindow;
+
+    @Value("${party-presence-message-broker.drain.timeout:5m}")
+    private Duration drainTimeout;
+
+    @Value("${party-presence-message-broker.drain.check-interval:1s}")
+    private Duration checkInterval;
+
+    @Value("${party-presence-message-broker.drain.shutdown-when-drained:true}")
+    private Boolean shutdownWhenDrained;
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile ScheduledFuture<?> drainCheck;
+    private volatile long drainDeadlineNanos;
+
+    private final SessionService sessionService;
+    private final TaskScheduler taskScheduler;
+    private final ApplicationContext applicationContext;
+    private final MessageIdGenerator messageIdGenerator;
+
+    public DrainService(SessionService sessionService, @Named(TaskExecutors.SCHEDULED) TaskScheduler taskScheduler,
+                        ApplicationContext applicationContext, MessageIdGenerator messageIdGenerator) {
+        this.sessionService = sessionService;
+        this.taskScheduler = taskScheduler;
+        this.applicationContext = applicationContext;
+        this.messageIdGenerator = messageIdGenerator;
+    }
+
+    public boolean isDraining() {
+        return draining.get();
+    }
+
+    // returns the number of streams sent a DRAIN message, zero if the node was already draining
+    public int drain(Duration requestedReconnectWindow) {
+        if (!draining.compareAndSet(false, true)) {
+            return 0;
+        }
+        final long windowMillis = Math.max(1, (requestedReconnectWindow != null ? requestedReconnectWindow : reconnectWindow).toMillis());
+        log.warn("Draining, spreading reconnects over {} ms", windowMillis);
+
+        // sessions multiplexed over the same stream share the same delay
+        Map<StreamObserver<ClientMessage>, Integer> reconnectDelays = new HashMap<>();
+        for (Session session : sessionService.getSessions()) {
+            synchronized (session) {
+                StreamObserver<ClientMessage> responseObserver = session.getResponseObserver();
+                if (session.getSessionState() != SessionState.ACTIVE || responseObserver == null) {
+                    continue;
+                }
+                int reconnectDelay = reconnectDelays.computeIfAbsent(responseObserver,
+                        key -> (int) ThreadLocalRandom.current().nextLong(windowMillis));
+                session.queueMessage(getBuilderFor(ClientMessageType.DRAIN, messageIdGenerator.nextId())
+                        .setPartyId(session.getParty().getId())
+                        .setSessionId(session.getId())
+                        .setReconnectDelayMillis(reconnectDelay)
+                        .build());
+                session.sendQueuedMessages();
+            }
+        }
+
+        drainDeadlineNanos = System.nanoTime() + drainTimeout.toNanos();
+        drainCheck = taskScheduler.scheduleAtFixedRate(checkInterval, checkInterval, this::checkDrained);
+        return reconnectDelays.size();
+    }
+
+    private void checkDrained() {
+        long activeSessions = sessionService.getSessions().stream()
+                .filter(session -> session.getSessionState() == SessionState.ACTIVE)
+                .count();
+        if (activeSessions > 0 && System.nanoTime() - drainDeadlineNanos < 0) {
+            log.info("Waiting for {} active sessions to disconnect", activeSessions);
+            return;
+        }
+        if (activeSessions > 0) {
+            log.warn("Drain timeout elapsed, closing {} remaining sessions", activeSessions);
+            // completing a stream runs its close handler, which unbinds every session on it, so the streams are
+            // completed outside of the session locks
+            Set<StreamObserver<ClientMessage>> responseObservers = new HashSet<>();
+            for (Session session : sessionService.getSessions()) {
+                synchronized (session) {
+                    if (session.getSessionState() == SessionState.ACTIVE && session.getResponseObserver() != null) {
+                        responseObservers.add(session.getResponseObserver());
+                    }
+                }
+            }
+            responseObservers.forEach(StreamObserver::onCompleted);
+        }
+
+        drainCheck.cancel(false);
+        log.warn("Drained");
+        if (shutdownWhenDrained) {
+            // stopping the context stops this scheduler too, so the shutdown runs on its own thread
+            new Thread(applicationContext::stop, "drain-shutdown").start();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
+import ca.ozluminaire.partypresence.util.RateLimiter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micronaut.context.annotation.Value;
+import io.micronaut.scheduling.annotation.Scheduled;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Slf4j
+@Singleton
+public class InboundRateLimiter {
+
+    enum Admission {
+        ADMIT,    // dispatch the message
+        THROTTLE, // drop the message and tell the client it is being throttled
+        DROP,     // drop the message silently
+        DISCONNECT // drop the message and disconnect the stream
+    }
+
+    private final double sessionMessagesPerSecond;
+    private final int sessionBurst;
+    private final double clientMessagesPerSecond;
+    private final int clientBurst;
+    private final int maxViolations;
+    private final long violationResetNanos;
+
+    // shared by all the sessions of a client, so that opening more streams does not multiply the allowance.
+    // Limiters of clients that stopped sending are evicted once their bucket is full again
+    private final Map<Long, RateLimiter> clientRateLimiters = new ConcurrentHashMap<>();
+
+    private final Counter sessionThrottledCounter;
+    private final Counter clientThrottledCounter;
+    private final Counter disconnectCounter;
+
+    public InboundRateLimiter(@Value("${party-presence-message-broker.rate-limit.session.messages-per-second:20}") double sessionMessagesPerSecond,
+                              @Value("${party-presence-message-broker.rate-limit.session.burst:40}") int sessionBurst,
+                              @Value("${party-presence-message-broker.rate-limit.client.messages-per-second:50}") double clientMessagesPerSecond,
+                              @Value("${party-presence-message-broker.rate-limit.client.burst:100}") int clientBurst,
+                              @Value("${party-presence-message-broker.rate-limit.max-violations:1000}") int maxViolations,
+                              @Value("${party-presence-message-broker.rate-limit.violation-reset:60s}") Duration violationReset,
+                              MeterRegistry meterRegistry) {
+        this.sessionMessagesPerSecond = sessionMessagesPerSecond;
+        this.sessionBurst = sessionBurst;
+        this.clientMessagesPerSecond = clientMessagesPerSecond;
+        this.clientBurst = clientBurst;
+        this.maxViolations = maxViolations;
+        this.violationResetNanos = violationReset.toNanos();
+        this.sessionThrottledCounter = meterRegistry.counter("broker.inbound.throttled", "scope", "session");
+        this.clientThrottledCounter = meterRegistry.counter("broker.inbound.throttled", "scope", "client");
+        this.disconnectCounter = meterRegistry.counter("broker.inbound.throttle.disconnects");
+    }
+
+    // a rate limit of zero or less disables the limit
+    RateLimiter newSessionRateLimiter() {
+        return sessionMessagesPerSecond > 0 ? new RateLimiter(sessionMessagesPerSecond, sessionBurst) : null;
+    }
+
+    // ACK and PING messages are not counted. ACKs answer the broker's own messages, so their rate follows the presence
+    // traffic of the party rather than the client, and PINGs keep the sessions of the stream alive. Throttling either
+    // would time out sessions that only fall behind on a busy party. Inbound flow control still keeps a stream to one
+    // message in flight
+    Admission admit(SessionReference sessionRef, ClientMessage clientMessage) {
+        if (sessionRef.getViolations() >= maxViolations) {
+            return Admission.DROP;
+        }
+        if (clientMessage.getMessageType() == ClientMessageType.ACK || clientMessage.getMessageType() == ClientMessageType.PING) {
+            return Admission.ADMIT;
+        }
+
+        boolean admitted;
+        RateLimiter sessionRateLimiter = sessionRef.getRateLimiter();
+        if (sessionRateLimiter != null && !sessionRateLimiter.tryAcquire()) {
+            sessionThrottledCounter.increment();
+            admitted = false;
+        } else {
+            RateLimiter clientRateLimiter = getClientRateLimiter(sessionRef, clientMessage);
+            admitted = clientRateLimiter == null || clientRateLimiter.tryAcquire();
+            if (!admitted) {
+                clientThrottledCounter.increment();
+            }
+        }
+
+        if (admitted) {
+            sessionRef.setThrottled(false);
+            // a stream that stayed within its limits for the whole reset interval starts over with a clean record
+            if (sessionRef.getViolations() > 0
+                    && System.nanoTime() - sessionRef.getLastViolationNanos() >= violationResetNanos) {
+                sessionRef.setViolations(0);
+            }
+            return Admission.ADMIT;
+        }
+
+        sessionRef.setViolations(sessionRef.getViolations() + 1);
+        sessionRef.setLastViolationNanos(System.nanoTime());
+        if (sessionRef.getViolations() >= maxViolations) {
+            log.warn("Disconnecting {} after {} throttled messages", sessionRef, sessionRef.getViolations());
+            disconnectCounter.increment();
+            return Admission.DISCONNECT;
+        }
+        if (!sessionRef.isThrottled()) {
+            sessionRef.setThrottled(true);
+            return Admission.THROTTLE;
+        }
+        return Admission.DROP;
+    }
+
+    // a full bucket carries no state, so dropping it bounds the map by the clients that sent messages recently
+    @Scheduled(fixedDelay = "${party-presence-message-broker.rate-limit.eviction-interval:60s}")
+    void evictIdleClientRateLimiters() {
+        clientRateLimiters.values().removeIf(RateLimiter::isFull);
+    }
+
+    int getClientRateLimiterCount() {
+        return clientRateLimiters.size();
+    }
+
+    private RateLimiter getClientRateLimiter(SessionReference sessionRef, ClientMessage clientMessage) {
+        if (clientMessagesPerSecond <= 0) {
+            return null;
+        }
+        final Long clientId;
+        if (sessionRef.hasSessions()) {
+            clientId = sessionRef.getSessions()[0].getClient().getId();
+        } else if (clientMessage.getMessageType() == ClientMessageType.JOIN) {
+            clientId = clientMessage.getClientId();
+        } else {
+            return null;
+        }
+        RateLimiter rateLimiter = clientRateLimiters.get(clientId);
+        if (rateLimiter == null) {
+            rateLimiter = clientRateLimiters.computeIfAbsent(clientId, key -> new RateLimiter(clientMessagesPerSecond, clientBurst));
+        }
+        return rateLimiter;
+    }
+}
@@ -4,11 +4,14 @@ import ca.ozluminaire.partypresence.StatusCode;
 import ca.ozluminaire.partypresence.model.Session;
 import ca.ozluminaire.partypresence.model.SessionState;
 import ca.ozluminaire.partypresence.service.SessionService;
+import ca.ozluminaire.partypresence.service.ShardService;
 import io.micronaut.context.annotation.Value;
 import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
 import jakarta.inject.Singleton;
 import lombok.extern.slf4j.Slf4j;
 
+import javax.annotation.PreDestroy;
 import java.util.concurrent.TimeUnit;
 
 @Slf4j
@@ -18,30 +21,83 @@ public class KeepaliveService {
     @Value("${party-presence-message-broker.keepalive-timeout:120}")
     private Long keepaliveTimeout;
 
+    // liveness comes from HTTP/2 keepalive instead of application PINGs, see TransportKeepaliveConfigurer
+    @Value("${party-presence-message-broker.transport-keepalive.enabled:false}")
+    private boolean transportKeepalive;
+
     // A fast, approximate timer implementation for a large number of requests. Common in I/O timeout scheduling.
     // The default constructor creates a timer with 100 ms tick duration, which is more than enough
     // for more info see https://github.com/wangjia184/HashedWheelTimer
     private final HashedWheelTimer timer = new HashedWheelTimer();
 
     private final SessionService sessionService;
-    public KeepaliveService(SessionService sessionService) {
+    private final ShardService shardService;
+
+    public KeepaliveService(SessionService sessionService, ShardService shardService) {
         this.sessionService = sessionService;
+        this.shardService = shardService;
     }
 
+    // Called for every inbound message, so it only records the activity. The session keeps a single timeout, which
+    // checks the last activity when it fires and reschedules itself for the remainder instead of being re-armed here.
+    // Any message on the stream keeps all the sessions multiplexed over it alive
     public void setKeepaliveTimer(SessionReference sessionReference) {
-        final Session session = sessionReference.getSession();
-        if (session != null) {
-            if (session.getTimeout() != null && !session.getTimeout().isCancelled()) {
-                session.getTimeout().cancel();
+        for (Session session : sessionReference.getSessions()) {
+            session.touch();
+            Timeout timeout = session.getTimeout();
+            if (timeout == null || timeout.isExpired() || timeout.isCancelled()) {
+                synchronized (session) {
+                    if (session.getTimeout() == timeout && session.getSessionState() != SessionState.EXPIRED) {
+                        scheduleTimeout(session, TimeUnit.SECONDS.toNanos(keepaliveTimeout));
+                    }
+                }
             }
-            session.setTimeout(timer.newTimeout(timeout -> {
-                log.warn("Closing {} due to timeout", session);
-                session.setSessionState(SessionState.INACTIVE);
-                session.getParty().removeSession(session, StatusCode.CLIENT_TIMEOUT);
-                sessionService.deleteSession(session);
+        }
+    }
+
+    // the timer thread is not a daemon thread, and would keep the JVM running after shutdown
+    @PreDestroy
+    void stopTimer() {
+        timer.stop();
+    }
 
-            }, keepaliveTimeout, TimeUnit.SECONDS));
+    // with sharding, the session's timeout runs on the timer wheel of its party's shard, and is checked on the shard
+    // thread, where it cannot race with the party's JOIN and LEAVE messages
+    private void scheduleTimeout(Session session, long delayNanos) {
+        final int shard = shardService.shardOf(session.getParty().getId());
+        final HashedWheelTimer shardTimer = shardService.isEnabled() ? shardService.getTimer(shard) : timer;
+        session.setTimeout(shardTimer.newTimeout(
+                timeout -> shardService.execute(shard, () -> checkTimeout(session, timeout)),
+                delayNanos, TimeUnit.NANOSECONDS));
+    }
+
+    // The check and the expiry are done under the session lock, where a JOIN resuming the session on its stream's
+    // shard binds it. Either the resume touches the session first and the timeout is rescheduled, or the session is
+    // expired first and the JOIN creates a new session in its place
+    private void checkTimeout(Session session, Timeout timeout) {
+        final long keepaliveTimeoutNanos = TimeUnit.SECONDS.toNanos(keepaliveTimeout);
+        synchronized (session) {
+            // the timeout was replaced or the session closed since it fired
+            if (session.getTimeout() != timeout) {
+                return;
+            }
+            // dead connections are closed by the transport, and every stream closed by the server, by shedding,
+            // draining or closing its last session, runs the close handler of its observer, and both unbind the
+            // sessions on the stream. So a session that is still bound is alive. Once unbound, the resume window runs
+            // from the time the stream closed
+            if (transportKeepalive && session.getSessionState() == SessionState.ACTIVE) {
+                session.touch();
+            }
+            final long idleNanos = System.nanoTime() - session.getLastActivityNanos();
+            if (idleNanos < keepaliveTimeoutNanos) {
+                scheduleTimeout(session, keepaliveTimeoutNanos - idleNanos);
+                return;
+            }
+            log.warn("Closing {} due to timeout", session);
+            session.setSessionState(SessionState.EXPIRED);
         }
+        session.getParty().removeSession(session, StatusCode.CLIENT_TIMEOUT);
+        sessionService.deleteSession(session);
     }
 
 }
@@ -0,0 +1,115 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
+import ca.ozluminaire.partypresence.StatusCode;
+import ca.ozluminaire.partypresence.model.Session;
+import ca.ozluminaire.partypresence.model.SessionState;
+import ca.ozluminaire.partypresence.service.OutboundMemoryBudget;
+import ca.ozluminaire.partypresence.service.SessionService;
+import ca.ozluminaire.partypresence.util.MessageIdGenerator;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micronaut.context.annotation.Value;
+import io.micronaut.scheduling.annotation.Scheduled;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static ca.ozluminaire.partypresence.util.ClientMessageUtil.getBuilderFor;
+
+/**
+ * Keeps the outgoing message backlog of the broker within the {@link OutboundMemoryBudget}.
+ * <p>
+ * When the budget use goes over the high watermark, the sessions with the largest and then the oldest backlogs are
+ * closed into the inactive state until the use drops below the low watermark. Shedding a session closes its stream,
+ * along with the other sessions multiplexed over it. Shed sessions can be resumed by their clients within the
+ * keepalive timeout, like any other ungracefully disconnected session.
+ */
+@Slf4j
+@Singleton
+public class OutboundMemoryShedder {
+
+    @Value("${party-presence-message-broker.outbound-budget.high-watermark:0.9}")
+    private Double highWatermark;
+
+    @Value("${party-presence-message-broker.outbound-budget.low-watermark:0.75}")
+    private Double lowWatermark;
+
+    private final OutboundMemoryBudget outboundMemoryBudget;
+    private final SessionService sessionService;
+    private final MessageIdGenerator messageIdGenerator;
+    private final Counter shedCounter;
+
+    public OutboundMemoryShedder(OutboundMemoryBudget outboundMemoryBudget, SessionService sessionService,
+                                 MessageIdGenerator messageIdGenerator, MeterRegistry meterRegistry) {
+        this.outboundMemoryBudget = outboundMemoryBudget;
+        this.sessionService = sessionService;
+        this.messageIdGenerator = messageIdGenerator;
+        this.shedCounter = meterRegistry.counter("broker.outbound.shed");
+    }
+
+    @Scheduled(fixedDelay = "${party-presence-message-broker.outbound-budget.check-interval:100ms}")
+    void shedIfOverBudget() {
+        final long limitBytes = outboundMemoryBudget.getLimitBytes();
+        if (outboundMemoryBudget.getUsedBytes() < limitBytes * highWatermark) {
+            return;
+        }
+
+        // backlogs keep changing while sorting, so sort a snapshot of them
+        List<Candidate> candidates = sessionService.getSessions().stream()
+                .filter(session -> session.getSessionState() == SessionState.ACTIVE && session.getBacklogBytes() > 0)
+                .map(Candidate::new)
+                .sorted(Comparator.comparingLong((Candidate candidate) -> candidate.backlogBytes).reversed()
+                        .thenComparingLong(candidate -> candidate.backlogSince))
+                .collect(Collectors.toList());
+
+        final long targetBytes = (long) (limitBytes * lowWatermark);
+        for (Candidate candidate : candidates) {
+            if (outboundMemoryBudget.getUsedBytes() <= targetBytes) {
+                break;
+            }
+            shed(candidate.session);
+        }
+    }
+
+    // the whole stream is closed, and its close handler unbinds the other sessions multiplexed over it and releases
+    // their backlogs too. The stream is closed outside of the session lock, since the handler locks those sessions
+    private void shed(Session session) {
+        final StreamObserver<ClientMessage> responseObserver;
+        synchronized (session) {
+            if (session.getSessionState() != SessionState.ACTIVE) {
+                return;
+            }
+            log.warn("Shedding {} with {} bytes of backlog, outbound messages use {} of {} bytes", session,
+                    session.getBacklogBytes(), outboundMemoryBudget.getUsedBytes(), outboundMemoryBudget.getLimitBytes());
+
+            responseObserver = session.getResponseObserver();
+            sessionService.unbindSession(session);
+            session.clearQueues();
+        }
+        if (responseObserver != null) {
+            responseObserver.onNext(getBuilderFor(ClientMessageType.ERROR, messageIdGenerator.nextId())
+                    .setSessionId(session.getId())
+                    .setStatusCode(StatusCode.OVERLOADED).build());
+            responseObserver.onCompleted();
+        }
+        shedCounter.increment();
+    }
+
+    private static class Candidate {
+        private final Session session;
+        private final long backlogBytes;
+        private final long backlogSince;
+
+        Candidate(Session session) {
+            this.session = session;
+            this.backlogBytes = session.getBacklogBytes();
+            this.backlogSince = session.getBacklogSince();
+        }
+    }
+}
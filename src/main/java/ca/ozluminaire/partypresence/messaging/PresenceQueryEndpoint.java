@@ -0,0 +1,67 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import ca.ozluminaire.partypresence.*;
+import ca.ozluminaire.partypresence.model.Client;
+import ca.ozluminaire.partypresence.model.Party;
+import ca.ozluminaire.partypresence.model.Session;
+import ca.ozluminaire.partypresence.service.ClientService;
+import ca.ozluminaire.partypresence.service.PartyService;
+import io.grpc.stub.StreamObserver;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+// Presence lookups for other backend services. Party lookups return the snapshot last published by the party, and
+// client lookups read the concurrent session set of the client, so neither takes a party lock.
+@Singleton
+@Slf4j
+public class PresenceQueryEndpoint extends PresenceQueryGrpc.PresenceQueryImplBase {
+
+    private final PartyService partyService;
+    private final ClientService clientService;
+
+    public PresenceQueryEndpoint(PartyService partyService, ClientService clientService) {
+        this.partyService = partyService;
+        this.clientService = clientService;
+    }
+
+    @Override
+    public void getPartyPresence(PartyPresenceRequest request, StreamObserver<PartyPresence> responseObserver) {
+        responseObserver.onNext(partyPresenceOf(request.getPartyId()));
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void getPartyPresences(MultiPartyPresenceRequest request, StreamObserver<MultiPartyPresenceResponse> responseObserver) {
+        MultiPartyPresenceResponse.Builder response = MultiPartyPresenceResponse.newBuilder();
+        request.getPartyIdsList().forEach(partyId -> response.addParties(partyPresenceOf(partyId)));
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void getClientPresences(ClientPresenceRequest request, StreamObserver<ClientPresenceResponse> responseObserver) {
+        ClientPresenceResponse.Builder response = ClientPresenceResponse.newBuilder();
+        request.getClientIdsList().forEach(clientId -> response.addClients(clientPresenceOf(clientId)));
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    private PartyPresence partyPresenceOf(Long partyId) {
+        Party party = partyService.findParty(partyId);
+        return party != null ? party.getSnapshot() : PartyPresence.newBuilder().setPartyId(partyId).build();
+    }
+
+    private ClientPresence clientPresenceOf(Long clientId) {
+        ClientPresence.Builder clientPresence = ClientPresence.newBuilder().setClientId(clientId);
+        Client client = clientService.findClient(clientId);
+        if (client != null) {
+            client.getSessions().stream()
+                    .map(Session::getParty)
+                    .map(Party::getId)
+                    .distinct()
+                    .forEach(clientPresence::addPartyIds);
+            clientPresence.setOnline(clientPresence.getPartyIdsCount() > 0);
+        }
+        return clientPresence.build();
+    }
+}
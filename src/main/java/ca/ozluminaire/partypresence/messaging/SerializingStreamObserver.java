@@ -0,0 +1,160 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.function.Predicate;
+
+/**
+ * Makes a gRPC response observer safe to share between the sessions multiplexed over a stream.
+ * <p>
+ * gRPC stream observers must not be called concurrently, but the fan-out of every party on a stream runs on its own
+ * thread. Calls are serialized here, and ignored once the stream is completed or failed, so that a session closing
+ * the transport does not break the delivery of the other sessions on it.
+ * <p>
+ * Completing or failing the stream from the server side runs the close handler, so that every session on the stream
+ * is unbound no matter which part of the broker closed it.
+ * <p>
+ * Flow control calls are passed through to the gRPC observer, so that sessions can check whether the transport is
+ * ready before sending presence messages.
+ */
+@Slf4j
+public class SerializingStreamObserver<T> extends CallStreamObserver<T> {
+
+    private final StreamObserver<T> delegate;
+    private boolean closed;
+
+    // runs once, after the server completes or fails the stream
+    private Runnable onCloseHandler;
+
+    // messages compressed on the wire, null if compression is off for the stream
+    private Predicate<T> compressedMessages;
+
+    public SerializingStreamObserver(StreamObserver<T> delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public synchronized void onNext(T value) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (compressedMessages != null && compressedMessages.test(value)) {
+                ServerCallStreamObserver<T> serverCallObserver = (ServerCallStreamObserver<T>) delegate;
+                serverCallObserver.setMessageCompression(true);
+                delegate.onNext(value);
+                serverCallObserver.setMessageCompression(false);
+            } else {
+                delegate.onNext(value);
+            }
+        } catch (RuntimeException e) {
+            // the call was cancelled by the client, the inbound side will unbind the sessions
+            log.debug("Could not send a message to {}, cause: {}", this.hashCode(), e.getMessage());
+            closed = true;
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                delegate.onError(t);
+            } catch (RuntimeException e) {
+                log.debug("Could not fail the stream {}, cause: {}", this.hashCode(), e.getMessage());
+            }
+        }
+        runOnCloseHandler();
+    }
+
+    @Override
+    public void onCompleted() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                delegate.onCompleted();
+            } catch (RuntimeException e) {
+                log.debug("Could not complete the stream {}, cause: {}", this.hashCode(), e.getMessage());
+            }
+        }
+        runOnCloseHandler();
+    }
+
+    /**
+     * Sets the handler run after the server completes or fails the stream. It runs on the closing thread, outside of
+     * the observer lock, so the stream must not be closed while holding a session lock. A failed send does not run it,
+     * since gRPC cancels the call and the inbound side closes the stream.
+     * Must be called before the observer is shared.
+     */
+    public void setOnCloseHandler(Runnable onCloseHandler) {
+        this.onCloseHandler = onCloseHandler;
+    }
+
+    /**
+     * Gzip compresses the messages matching the predicate, and leaves the others uncompressed. gRPC falls back to
+     * sending uncompressed messages if the client does not accept gzip. Has no effect once the response headers
+     * are sent, which happens with the first message on the stream.
+     */
+    public synchronized void compressMessages(Predicate<T> predicate) {
+        if (compressedMessages != null || !(delegate instanceof ServerCallStreamObserver)) {
+            return;
+        }
+        ServerCallStreamObserver<T> serverCallObserver = (ServerCallStreamObserver<T>) delegate;
+        try {
+            serverCallObserver.setCompression("gzip");
+            serverCallObserver.setMessageCompression(false);
+            compressedMessages = predicate;
+        } catch (IllegalStateException e) {
+            log.debug("Could not enable compression on {}, cause: {}", this.hashCode(), e.getMessage());
+        }
+    }
+
+    private void runOnCloseHandler() {
+        if (onCloseHandler != null) {
+            onCloseHandler.run();
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return !(delegate instanceof CallStreamObserver) || ((CallStreamObserver<T>) delegate).isReady();
+    }
+
+    // must be called before beginStream returns, like on the gRPC observer
+    @Override
+    public void setOnReadyHandler(Runnable onReadyHandler) {
+        if (delegate instanceof CallStreamObserver) {
+            ((CallStreamObserver<T>) delegate).setOnReadyHandler(onReadyHandler);
+        }
+    }
+
+    @Override
+    public void disableAutoInboundFlowControl() {
+        if (delegate instanceof CallStreamObserver) {
+            ((CallStreamObserver<T>) delegate).disableAutoInboundFlowControl();
+        }
+    }
+
+    @Override
+    public void request(int count) {
+        if (delegate instanceof CallStreamObserver) {
+            ((CallStreamObserver<T>) delegate).request(count);
+        }
+    }
+
+    @Override
+    public synchronized void setMessageCompression(boolean enable) {
+        if (delegate instanceof CallStreamObserver) {
+            ((CallStreamObserver<T>) delegate).setMessageCompression(enable);
+        }
+    }
+}
@@ -1,18 +1,97 @@
 package ca.ozluminaire.partypresence.messaging;
 
+import ca.ozluminaire.partypresence.ListEncoding;
 import ca.ozluminaire.partypresence.model.Session;
+import ca.ozluminaire.partypresence.model.SessionState;
+import ca.ozluminaire.partypresence.util.RateLimiter;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Setter;
 
-import java.util.Objects;
+import java.util.Arrays;
 
 @Data
 public class SessionReference {
 
-    private Session session;
+    private static final Session[] NO_SESSIONS = new Session[0];
+
+    // sessions multiplexed over the stream, at most one per party. Copied on write, so that the per-message paths
+    // can iterate over it without locking or allocating
+    @Setter(AccessLevel.NONE)
+    private volatile Session[] sessions = NO_SESSIONS;
+
+    // inbound rate limiter for the stream, null if unlimited
+    private final RateLimiter rateLimiter;
+
+    // throttled message count for the stream, the time of the last throttled message, and whether the last message
+    // was throttled. only accessed from the stream's inbound calls, which gRPC never runs concurrently
+    private int violations;
+    private long lastViolationNanos;
+    private boolean throttled;
+
+    // shard of the first party the stream joined, where all of its messages are processed, -1 before the first JOIN.
+    // only accessed from the stream's inbound calls
+    private int homeShard = -1;
+
+    // LIST encoding requested by the first JOIN message of the stream, applied to every session on it
+    private volatile ListEncoding listEncoding = ListEncoding.LIST_ENCODING_STANDARD;
+
+    // set once the stream is closed, by the client or by the server. A JOIN processed after that unbinds its session
+    // again, since the server may close the stream from another thread while the JOIN is being processed
+    private volatile boolean closed;
+
+    public boolean hasSessions() {
+        return sessions.length > 0;
+    }
+
+    // the session of the stream in the party, or null if the stream has not joined the party
+    public Session getSession(long partyId) {
+        for (Session session : sessions) {
+            if (session.getParty().getId() == partyId && session.getSessionState() != SessionState.EXPIRED) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    // the first session of the stream that is still bound to it, or null if there is none
+    public Session getActiveSession() {
+        for (Session session : sessions) {
+            if (session.getSessionState() == SessionState.ACTIVE) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    // same as getSession, but falls back to the only session of the stream if the message has no party ID,
+    // so that clients that do not multiplex parties do not need to set it after the JOIN message
+    public Session resolveSession(long partyId) {
+        final Session[] current = sessions;
+        if (partyId == 0 && current.length == 1) {
+            return current[0];
+        }
+        return getSession(partyId);
+    }
+
+    public synchronized void addSession(Session session) {
+        Session[] updated = Arrays.stream(sessions)
+                .filter(existing -> !existing.getParty().equals(session.getParty()))
+                .toArray(Session[]::new);
+        updated = Arrays.copyOf(updated, updated.length + 1);
+        updated[updated.length - 1] = session;
+        sessions = updated;
+    }
+
+    public synchronized void removeSession(Session session) {
+        sessions = Arrays.stream(sessions)
+                .filter(existing -> !existing.equals(session))
+                .toArray(Session[]::new);
+    }
 
     @Override
     public String toString() {
-        return Objects.toString(session);
+        return Arrays.toString(sessions);
     }
 
 }
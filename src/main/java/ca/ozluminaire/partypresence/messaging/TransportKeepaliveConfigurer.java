@@ -0,0 +1,50 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import io.grpc.ServerBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.micronaut.context.annotation.Requires;
+import io.micronaut.context.annotation.Value;
+import io.micronaut.context.event.BeanCreatedEvent;
+import io.micronaut.context.event.BeanCreatedEventListener;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enables HTTP/2 keepalive on the gRPC server when transport keepalive is on. The server PINGs idle connections and
+ * closes the ones that do not answer, which cancels their streams and unbinds their sessions. The keepalive timer
+ * then treats bound sessions as alive, so clients do not need to send application PING messages.
+ */
+@Slf4j
+@Singleton
+@Requires(property = "party-presence-message-broker.transport-keepalive.enabled", value = "true")
+public class TransportKeepaliveConfigurer implements BeanCreatedEventListener<ServerBuilder<?>> {
+
+    // idle time before the server sends an HTTP/2 PING, and how long it waits for the PING ack
+    @Value("${party-presence-message-broker.transport-keepalive.time:30s}")
+    private Duration keepaliveTime;
+
+    @Value("${party-presence-message-broker.transport-keepalive.timeout:10s}")
+    private Duration keepaliveTimeout;
+
+    // most frequent HTTP/2 PINGs accepted from clients, faster clients are disconnected by gRPC
+    @Value("${party-presence-message-broker.transport-keepalive.permit-time:10s}")
+    private Duration permitKeepaliveTime;
+
+    @Override
+    public ServerBuilder<?> onCreated(BeanCreatedEvent<ServerBuilder<?>> event) {
+        ServerBuilder<?> serverBuilder = event.getBean();
+        if (serverBuilder instanceof NettyServerBuilder) {
+            log.info("Enabling transport keepalive, time {}, timeout {}", keepaliveTime, keepaliveTimeout);
+            ((NettyServerBuilder) serverBuilder)
+                    .keepAliveTime(keepaliveTime.toNanos(), TimeUnit.NANOSECONDS)
+                    .keepAliveTimeout(keepaliveTimeout.toNanos(), TimeUnit.NANOSECONDS)
+                    .permitKeepAliveTime(permitKeepaliveTime.toNanos(), TimeUnit.NANOSECONDS);
+        } else {
+            log.warn("Transport keepalive is not supported by {}", serverBuilder.getClass().getName());
+        }
+        return serverBuilder;
+    }
+}
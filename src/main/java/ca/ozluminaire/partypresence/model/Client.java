@@ -5,6 +5,9 @@ import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.ToString;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 @RequiredArgsConstructor
 @Getter
 @EqualsAndHashCode(onlyExplicitlyIncluded = true)
@@ -15,5 +18,9 @@ public class Client {
     @ToString.Include
     private final Long id;
 
+    // sessions of this client in any party, maintained by the parties. Concurrent so presence queries can read it
+    // without taking any party locks
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+
     // name, profile picture URL, possibly other info...
 }
@@ -3,7 +3,11 @@ package ca.ozluminaire.partypresence.model;
 import ca.ozluminaire.partypresence.ClientMessage;
 import ca.ozluminaire.partypresence.ClientMessageType;
 import ca.ozluminaire.partypresence.ClientSessionIdEntry;
+import ca.ozluminaire.partypresence.CompactParticipantList;
+import ca.ozluminaire.partypresence.ListEncoding;
+import ca.ozluminaire.partypresence.PartyPresence;
 import ca.ozluminaire.partypresence.StatusCode;
+import ca.ozluminaire.partypresence.util.MessageIdGenerator;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
@@ -11,9 +15,11 @@ import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static ca.ozluminaire.partypresence.util.ClientMessageUtil.getBuilderFor;
+import static ca.ozluminaire.partypresence.util.CompactParticipantListCodec.encode;
 
 @Slf4j
 @RequiredArgsConstructor
@@ -25,30 +31,78 @@ public class Party {
     @ToString.Include
     private final Long id;
 
+    // when set, only the first session of a client to come online and its last session to go offline are broadcast.
+    // Other sessions of the client only show up in LIST messages and snapshots. The broadcasts stand for the whole
+    // client and carry no session ID, since subscribers tracking sessions would otherwise keep the sessions that were
+    // never broadcast
+    private final boolean clientAggregation;
+
+    private final MessageIdGenerator messageIdGenerator;
+
     private final Set<Session> sessions = new HashSet<>();
 
-    public void addSession(Session newSession) {
+    // sessions in the party by client ID, guarded by the sessions lock
+    private final Map<Long, Set<Session>> clientSessions = new HashMap<>();
+
+    // reverse index from a client ID to the sessions interested in its presence. Sessions without an interest set
+    // are kept in unfilteredSessions instead, and receive presence messages for every client in the party.
+    // Both are guarded by the sessions lock.
+    private final Map<Long, Set<Session>> interestIndex = new HashMap<>();
+    private final Set<Session> unfilteredSessions = new HashSet<>();
+
+    // immutable view of the party membership, republished on every membership change so that presence queries can
+    // read it without taking the sessions lock. The version is guarded by the sessions lock
+    private volatile PartyPresence snapshot;
+    private long snapshotVersion;
+
+    // position of each client's entry in the snapshot, so that a change only replaces the entry of its client.
+    // Guarded by the sessions lock
+    private final Map<Long, Integer> snapshotIndexes = new HashMap<>();
+
+    // compact encoding of the snapshot entries, built on demand for unfiltered sessions with a compact list encoding
+    // and dropped when the snapshot is republished. Guarded by the sessions lock
+    private CompactParticipantList compactSnapshot;
+
+    // Adds or re-adds the session with the interest set of its JOIN message, and sends it a single LIST message. A
+    // session that timed out before it got here is not added back
+    public void addSession(Session newSession, Collection<Long> interestClientIds) {
         synchronized (sessions) {
+            if (newSession.getSessionState() == SessionState.EXPIRED) {
+                return;
+            }
+            final Long clientId = newSession.getClient().getId();
+            // a new session with the ID of a timed out one is equal to it, and takes its place in the party
+            final Session member = findMember(newSession);
             sessions.remove(newSession);
-            sessions.forEach(session -> session.queueMessage(getBuilderFor(ClientMessageType.JOIN)
-                    .setClientId(newSession.getClient().getId())
-                    .setSessionId(newSession.getId())
-                    .build()));
-            sessions.add(newSession);
+            unindexSession(member != null ? member : newSession);
+            newSession.setInterestClientIds(toInterestSet(interestClientIds));
 
-            Map<Long, Set<Long>> clientSessionIdMap = new HashMap<>();
-            sessions.forEach(session ->
-                    clientSessionIdMap.computeIfAbsent(session.getClient().getId(), key -> new HashSet<>())
-                            .add(session.getId()));
+            Set<Session> clientSessionSet = clientSessions.computeIfAbsent(clientId, key -> new HashSet<>());
+            final boolean broadcast = !clientAggregation || clientSessionSet.isEmpty();
+            clientSessionSet.remove(newSession);
+            clientSessionSet.add(newSession);
 
-            newSession.queueMessage(getBuilderFor(ClientMessageType.LIST)
-                    .addAllParticipantClientIds(clientSessionIdMap.entrySet().stream().map(entry ->
-                            ClientSessionIdEntry.newBuilder()
-                                    .setClientId(entry.getKey())
-                                    .addAllSessionId(entry.getValue()).build()).collect(Collectors.toList()))
-                    .build());
+            // one message with one ID is queued to every subscriber
+            if (broadcast) {
+                final ClientMessage joinMessage = getBuilderFor(ClientMessageType.JOIN, messageIdGenerator.nextId())
+                        .setPartyId(id)
+                        .setClientId(clientId)
+                        .setSessionId(broadcastSessionId(newSession))
+                        .build();
+                forEachSubscriber(clientId, session -> session.queueMessage(joinMessage));
+            }
+            sessions.add(newSession);
+            indexSession(newSession);
+            newSession.getClient().getSessions().remove(newSession);
+            newSession.getClient().getSessions().add(newSession);
+            publishSnapshot(clientId);
 
-            sessions.forEach(Session::sendQueuedMessages);
+            newSession.queueMessage(buildListMessage(newSession));
+
+            if (broadcast) {
+                forEachSubscriber(clientId, Session::sendQueuedMessages);
+            }
+            newSession.sendQueuedMessages();
         }
     }
 
@@ -58,13 +112,176 @@ public class Party {
 
     public void removeSession(Session removedSession, StatusCode statusCode) {
         synchronized (sessions) {
-            sessions.remove(removedSession);
-            sessions.forEach(session -> session.queueMessage(
-                    getBuilderFor(ClientMessageType.LEAVE)
-                            .setClientId(removedSession.getClient().getId())
-                            .setSessionId(removedSession.getId())
-                            .setStatusCode(statusCode).build()));
-            sessions.forEach(Session::sendQueuedMessages);
+            final Long clientId = removedSession.getClient().getId();
+            // a session that timed out while a JOIN resumed it may already have been replaced by a new session with
+            // the same ID, which must not be removed in its place
+            final Session member = findMember(removedSession);
+            if (member != null && member != removedSession) {
+                return;
+            }
+            boolean lastSession = false;
+            if (sessions.remove(removedSession)) {
+                removedSession.getClient().getSessions().remove(removedSession);
+                Set<Session> clientSessionSet = clientSessions.get(clientId);
+                clientSessionSet.remove(removedSession);
+                if (clientSessionSet.isEmpty()) {
+                    clientSessions.remove(clientId);
+                    lastSession = true;
+                }
+                publishSnapshot(clientId);
+            }
+            unindexSession(removedSession);
+
+            if (!clientAggregation || lastSession) {
+                final ClientMessage leaveMessage = getBuilderFor(ClientMessageType.LEAVE, messageIdGenerator.nextId())
+                        .setPartyId(id)
+                        .setClientId(clientId)
+                        .setSessionId(broadcastSessionId(removedSession))
+                        .setStatusCode(statusCode).build();
+                forEachSubscriber(clientId, session -> session.queueMessage(leaveMessage));
+                forEachSubscriber(clientId, Session::sendQueuedMessages);
+            }
+        }
+    }
+
+    // Replaces the interest set of the session, an empty set subscribes the session to every client in the party.
+    // Sessions already in the party receive a new LIST message filtered by the updated interest set.
+    public void updateInterest(Session session, Collection<Long> interestClientIds) {
+        synchronized (sessions) {
+            boolean isMember = sessions.contains(session);
+            if (isMember) {
+                unindexSession(session);
+            }
+            session.setInterestClientIds(toInterestSet(interestClientIds));
+            if (isMember) {
+                indexSession(session);
+                session.queueMessage(buildListMessage(session));
+                session.sendQueuedMessages();
+            }
+        }
+    }
+
+    public PartyPresence getSnapshot() {
+        PartyPresence partyPresence = snapshot;
+        return partyPresence != null ? partyPresence : PartyPresence.newBuilder().setPartyId(id).build();
+    }
+
+    // Builds the new snapshot from the previous one, and only rebuilds the entry of the changed client. The entries of
+    // the other clients are shared with the previous snapshot. A removed entry is replaced by the last one
+    private void publishSnapshot(Long changedClientId) {
+        PartyPresence.Builder partyPresence = getSnapshot().toBuilder()
+                .setVersion(++snapshotVersion)
+                .setTimestamp(System.currentTimeMillis());
+        Set<Session> clientSessionSet = clientSessions.get(changedClientId);
+        Integer index = snapshotIndexes.get(changedClientId);
+        if (clientSessionSet != null) {
+            ClientSessionIdEntry entry = toEntry(changedClientId, clientSessionSet);
+            if (index != null) {
+                partyPresence.setParticipantClientIds(index, entry);
+            } else {
+                snapshotIndexes.put(changedClientId, partyPresence.getParticipantClientIdsCount());
+                partyPresence.addParticipantClientIds(entry);
+            }
+        } else if (index != null) {
+            int lastIndex = partyPresence.getParticipantClientIdsCount() - 1;
+            if (index != lastIndex) {
+                ClientSessionIdEntry lastEntry = partyPresence.getParticipantClientIds(lastIndex);
+                partyPresence.setParticipantClientIds(index, lastEntry);
+                snapshotIndexes.put(lastEntry.getClientId(), index);
+            }
+            partyPresence.removeParticipantClientIds(lastIndex);
+            snapshotIndexes.remove(changedClientId);
+        }
+        snapshot = partyPresence.build();
+        compactSnapshot = null;
+    }
+
+    private void forEachSubscriber(Long clientId, Consumer<Session> consumer) {
+        unfilteredSessions.forEach(consumer);
+        interestIndex.getOrDefault(clientId, Collections.emptySet()).forEach(consumer);
+    }
+
+    private void indexSession(Session session) {
+        Set<Long> interestClientIds = session.getInterestClientIds();
+        if (interestClientIds == null) {
+            unfilteredSessions.add(session);
+        } else {
+            interestClientIds.forEach(clientId -> interestIndex.computeIfAbsent(clientId, key -> new HashSet<>()).add(session));
+        }
+    }
+
+    private void unindexSession(Session session) {
+        if (!unfilteredSessions.remove(session)) {
+            Set<Long> interestClientIds = session.getInterestClientIds();
+            if (interestClientIds != null) {
+                interestClientIds.forEach(clientId -> {
+                    Set<Session> interestedSessions = interestIndex.get(clientId);
+                    if (interestedSessions != null) {
+                        interestedSessions.remove(session);
+                        if (interestedSessions.isEmpty()) {
+                            interestIndex.remove(clientId);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private ClientMessage buildListMessage(Session session) {
+        ClientMessage.Builder listMessage = getBuilderFor(ClientMessageType.LIST, messageIdGenerator.nextId()).setPartyId(id);
+        Set<Long> interestClientIds = session.getInterestClientIds();
+        boolean compact = session.getListEncoding() != ListEncoding.LIST_ENCODING_STANDARD;
+
+        // unfiltered sessions get the same entries as the published snapshot
+        if (interestClientIds == null) {
+            if (!compact) {
+                return listMessage.addAllParticipantClientIds(getSnapshot().getParticipantClientIdsList()).build();
+            }
+            if (compactSnapshot == null) {
+                compactSnapshot = encode(getSnapshot().getParticipantClientIdsList());
+            }
+            return listMessage.setCompactParticipants(compactSnapshot).build();
         }
+
+        List<ClientSessionIdEntry> entries = new ArrayList<>();
+        interestClientIds.forEach(clientId -> {
+            Set<Session> clientSessionSet = clientSessions.get(clientId);
+            if (clientSessionSet != null) {
+                entries.add(toEntry(clientId, clientSessionSet));
+            }
+        });
+        return compact
+                ? listMessage.setCompactParticipants(encode(entries)).build()
+                : listMessage.addAllParticipantClientIds(entries).build();
+    }
+
+    // the session in the party that is equal to the given one, which is another instance if a new session replaced a
+    // timed out one with the same ID
+    private Session findMember(Session session) {
+        Set<Session> clientSessionSet = clientSessions.get(session.getClient().getId());
+        if (clientSessionSet != null) {
+            for (Session member : clientSessionSet) {
+                if (member.equals(session)) {
+                    return member;
+                }
+            }
+        }
+        return null;
+    }
+
+    private long broadcastSessionId(Session session) {
+        return clientAggregation ? 0L : session.getId();
+    }
+
+    // an empty interest set stands for every client in the party
+    private static Set<Long> toInterestSet(Collection<Long> interestClientIds) {
+        return interestClientIds.isEmpty() ? null : Set.copyOf(interestClientIds);
+    }
+
+    private static ClientSessionIdEntry toEntry(Long clientId, Set<Session> clientSessionSet) {
+        return ClientSessionIdEntry.newBuilder()
+                .setClientId(clientId)
+                .addAllSessionId(clientSessionSet.stream().map(Session::getId).collect(Collectors.toList()))
+                .build();
     }
 }
@@ -1,15 +1,25 @@
 package ca.ozluminaire.partypresence.model;
 
 import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ListEncoding;
+import ca.ozluminaire.partypresence.service.OutboundLaneMetrics;
+import ca.ozluminaire.partypresence.service.OutboundMemoryBudget;
+import ca.ozluminaire.partypresence.util.DeduplicationWindow;
+import io.grpc.stub.CallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import io.netty.util.Timeout;
 import lombok.*;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 @Slf4j
 @Getter
@@ -18,6 +28,8 @@ import java.util.concurrent.ConcurrentLinkedDeque;
 @ToString(onlyExplicitlyIncluded = true)
 public class Session {
 
+    private static final int INBOUND_DEDUPLICATION_WINDOW_SIZE = 64;
+
     @EqualsAndHashCode.Include
     @ToString.Include
     private final Long id;
@@ -30,6 +42,10 @@ public class Session {
     @ToString.Include
     private final Party party;
 
+    private final OutboundMemoryBudget outboundMemoryBudget;
+
+    private final OutboundLaneMetrics outboundLaneMetrics;
+
     @Setter
     @ToString.Include
     private SessionState sessionState = SessionState.NEW;
@@ -37,55 +53,247 @@ public class Session {
     @Setter
     private StreamObserver<ClientMessage> responseObserver; // reference to gRPC client stream
 
-    // outgoing message queue for this session
-    private final Deque<ClientMessage> outgoingMessages = new ConcurrentLinkedDeque<>();
+    // outgoing messages waiting to be sent, in two lanes guarded by the session lock. The control lane (ACK, ERROR,
+    // DRAIN) is always sent first, so acks never wait behind presence broadcasts. The presence lane (JOIN, LEAVE, LIST)
+    // is held back while the transport is not ready, and its messages can be superseded by newer ones while they wait
+    @Getter(AccessLevel.NONE)
+    private final Deque<QueuedMessage> controlLane = new ArrayDeque<>();
+    @Getter(AccessLevel.NONE)
+    private final Deque<QueuedMessage> presenceLane = new ArrayDeque<>();
+
+    // latest JOIN or LEAVE message waiting in the presence lane for each client session
+    @Getter(AccessLevel.NONE)
+    private final Map<PresenceKey, QueuedMessage> pendingPresence = new HashMap<>();
 
     // inflight messages for this session
     private final Map<Long, ClientMessage> inflightMessages = new ConcurrentHashMap<>();
 
+    // recently processed inbound message IDs, so that retried client messages are only acked again
+    private final DeduplicationWindow inboundMessageIds = new DeduplicationWindow(INBOUND_DEDUPLICATION_WINDOW_SIZE);
+
+    // serialized size of the queued and inflight messages, and when the backlog last started growing from empty
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong backlogBytes = new AtomicLong();
+    private volatile long backlogSince;
+
+    // client IDs this session receives presence messages for, null if the session is subscribed to all clients.
+    // only modified by the party while holding its session lock
+    @Setter(AccessLevel.PACKAGE)
+    private volatile Set<Long> interestClientIds;
+
+    // encoding of the LIST messages sent to this session, negotiated by the stream it is bound to
+    @Setter
+    private volatile ListEncoding listEncoding = ListEncoding.LIST_ENCODING_STANDARD;
+
     // keepalive timer
     @Setter
-    private Timeout timeout;
+    private volatile Timeout timeout;
 
-    public synchronized void close() {
-        if (timeout != null && !timeout.isCancelled()) {
-            timeout.cancel();
-        }
-        if (responseObserver != null) {
-            responseObserver.onCompleted();
+    // System.nanoTime() of the last message received from the client
+    private volatile long lastActivityNanos = System.nanoTime();
+
+    // removes the session from the stream it was joined on, run once when the session is closed or resumed on another
+    // stream. Guarded by the session lock
+    @Getter(AccessLevel.NONE)
+    @Setter
+    private Consumer<Session> detachHandler;
+
+    // set by the first close, guarded by the session lock
+    @Getter(AccessLevel.NONE)
+    private boolean closed;
+
+    // the stream is shared with the other sessions multiplexed over it, so it is left to the detach handler to close it
+    // once the last of them is gone
+    // Returns false if the session was already closed
+    public boolean close() {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            if (timeout != null && !timeout.isCancelled()) {
+                timeout.cancel();
+            }
+
+            timeout = null;
+            responseObserver = null;
+            sessionState = SessionState.EXPIRED;
+
+            clearQueues();
         }
+        detach();
+        return true;
+    }
 
-        clearQueues();
+    // runs the detach handler outside of the session lock, since it may close the stream
+    public void detach() {
+        final Consumer<Session> handler;
+        synchronized (this) {
+            handler = detachHandler;
+            detachHandler = null;
+        }
+        if (handler != null) {
+            handler.accept(this);
+        }
+    }
 
-        timeout = null;
-        responseObserver = null;
-        sessionState = SessionState.EXPIRED;
+    public void touch() {
+        lastActivityNanos = System.nanoTime();
     }
 
-    public void queueMessage(ClientMessage message) {
-        if (sessionState == SessionState.ACTIVE) {
-            outgoingMessages.offer(message);
+    public synchronized void queueMessage(ClientMessage message) {
+        if (sessionState != SessionState.ACTIVE) {
+            return;
+        }
+        allocate(message);
+        switch (message.getMessageType()) {
+            case JOIN:
+            case LEAVE:
+                PresenceKey presenceKey = new PresenceKey(message.getClientId(), message.getSessionId());
+                QueuedMessage queuedMessage = new QueuedMessage(message, presenceKey);
+                supersede(pendingPresence.put(presenceKey, queuedMessage));
+                presenceLane.offer(queuedMessage);
+                break;
+            case LIST:
+                // a LIST carries the whole membership, so nothing queued before it is needed any more
+                QueuedMessage obsoleteMessage;
+                while ((obsoleteMessage = presenceLane.poll()) != null) {
+                    supersede(obsoleteMessage);
+                }
+                pendingPresence.clear();
+                presenceLane.offer(new QueuedMessage(message, null));
+                break;
+            default:
+                controlLane.offer(new QueuedMessage(message, null));
+                break;
         }
     }
 
-    public void clearQueues() {
+    public synchronized void clearQueues() {
         if (sessionState != SessionState.ACTIVE) {
-            inflightMessages.clear();
-            outgoingMessages.clear();
+            QueuedMessage queuedMessage;
+            while ((queuedMessage = controlLane.poll()) != null) {
+                release(queuedMessage.message);
+            }
+            while ((queuedMessage = presenceLane.poll()) != null) {
+                if (!queuedMessage.superseded) {
+                    release(queuedMessage.message);
+                }
+            }
+            pendingPresence.clear();
+
+            Iterator<ClientMessage> iterator = inflightMessages.values().iterator();
+            while (iterator.hasNext()) {
+                ClientMessage message = iterator.next();
+                iterator.remove();
+                release(message);
+            }
         }
     }
 
     public synchronized void sendQueuedMessages() {
-        while (sessionState == SessionState.ACTIVE && responseObserver != null && !outgoingMessages.isEmpty()) {
-            ClientMessage message = outgoingMessages.poll();
-            responseObserver.onNext(message);
-            inflightMessages.put(message.getMessageId(), message);
+        sendControlMessages();
+        sendPresenceMessages();
+    }
+
+    // ACKs skip the lanes entirely, and are not kept inflight since clients do not acknowledge them.
+    // Only the control messages queued before them are sent first
+    public synchronized void sendAck(ClientMessage ackMessage) {
+        sendControlMessages();
+        if (sessionState == SessionState.ACTIVE && responseObserver != null) {
+            responseObserver.onNext(ackMessage);
         }
+        sendPresenceMessages();
     }
 
-    public void ackMessage(long messageId) {
-        inflightMessages.remove(messageId);
+    // returns false if the message is not inflight in this session
+    public boolean ackMessage(long messageId) {
+        ClientMessage message = inflightMessages.remove(messageId);
+        if (message != null) {
+            release(message);
+            return true;
+        }
+        return false;
+    }
+
+    public long getBacklogBytes() {
+        return backlogBytes.get();
+    }
+
+    private void sendControlMessages() {
+        QueuedMessage queuedMessage;
+        while (sessionState == SessionState.ACTIVE && responseObserver != null
+                && (queuedMessage = controlLane.poll()) != null) {
+            outboundLaneMetrics.recordControlWait(System.nanoTime() - queuedMessage.queuedNanos);
+            send(queuedMessage.message);
+        }
+    }
+
+    private void sendPresenceMessages() {
+        QueuedMessage queuedMessage;
+        while (sessionState == SessionState.ACTIVE && responseObserver != null && isTransportReady()
+                && (queuedMessage = presenceLane.poll()) != null) {
+            if (queuedMessage.superseded) {
+                continue;
+            }
+            if (queuedMessage.presenceKey != null) {
+                pendingPresence.remove(queuedMessage.presenceKey, queuedMessage);
+            }
+            outboundLaneMetrics.recordPresenceWait(System.nanoTime() - queuedMessage.queuedNanos);
+            send(queuedMessage.message);
+        }
+    }
+
+    private void send(ClientMessage message) {
+        responseObserver.onNext(message);
+        ClientMessage replaced = inflightMessages.put(message.getMessageId(), message);
+        if (replaced != null) {
+            release(replaced);
+        }
+    }
+
+    // gRPC buffers every message it is given, so presence messages wait in their lane once the client falls behind.
+    // The stream's onReady handler sends them when the transport catches up
+    private boolean isTransportReady() {
+        return !(responseObserver instanceof CallStreamObserver) || ((CallStreamObserver<?>) responseObserver).isReady();
+    }
+
+    private void supersede(QueuedMessage queuedMessage) {
+        if (queuedMessage != null && !queuedMessage.superseded) {
+            queuedMessage.superseded = true;
+            release(queuedMessage.message);
+            outboundLaneMetrics.recordCollapsed();
+        }
+    }
+
+    private void allocate(ClientMessage message) {
+        int size = message.getSerializedSize();
+        if (backlogBytes.getAndAdd(size) == 0) {
+            backlogSince = System.currentTimeMillis();
+        }
+        outboundMemoryBudget.allocate(size);
+    }
+
+    private void release(ClientMessage message) {
+        int size = message.getSerializedSize();
+        backlogBytes.addAndGet(-size);
+        outboundMemoryBudget.release(size);
     }
     // TODO add retries for inflight ack deadline exceeded messages
     // TODO add retry count and a dead letter queue
+
+    @RequiredArgsConstructor
+    private static final class QueuedMessage {
+        private final ClientMessage message;
+        private final PresenceKey presenceKey; // null outside of JOIN and LEAVE messages
+        private final long queuedNanos = System.nanoTime();
+        private boolean superseded;
+    }
+
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static final class PresenceKey {
+        private final long clientId;
+        private final long sessionId;
+    }
 }
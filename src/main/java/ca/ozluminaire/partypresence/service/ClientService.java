@@ -16,4 +16,9 @@ public class ClientService {
         return clientMap.computeIfAbsent(clientId, Client::new);
     }
 
+    // returns null instead of creating the client if it does not exist
+    public Client findClient(Long clientId) {
+        return clientMap.get(clientId);
+    }
+
 }
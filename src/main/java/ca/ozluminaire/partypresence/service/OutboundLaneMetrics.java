@@ -0,0 +1,38 @@
+package ca.ozluminaire.partypresence.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.inject.Singleton;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time outgoing messages spend in the control and presence lanes of their session before they are sent,
+ * and the number of presence messages collapsed into a newer one while they waited.
+ */
+@Singleton
+public class OutboundLaneMetrics {
+
+    private final Timer controlWait;
+    private final Timer presenceWait;
+    private final Counter collapsed;
+
+    public OutboundLaneMetrics(MeterRegistry meterRegistry) {
+        this.controlWait = meterRegistry.timer("broker.outbound.queue.wait", "lane", "control");
+        this.presenceWait = meterRegistry.timer("broker.outbound.queue.wait", "lane", "presence");
+        this.collapsed = meterRegistry.counter("broker.outbound.collapsed");
+    }
+
+    public void recordControlWait(long nanos) {
+        controlWait.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordPresenceWait(long nanos) {
+        presenceWait.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordCollapsed() {
+        collapsed.increment();
+    }
+}
@@ -0,0 +1,44 @@
+package ca.ozluminaire.partypresence.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micronaut.context.annotation.Value;
+import jakarta.inject.Singleton;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Broker-wide accounting of the serialized size of all queued and inflight outgoing messages.
+ * <p>
+ * Sessions add to and subtract from a striped counter, so accounting does not contend across cores. Reading the
+ * current usage sums the stripes, and is only done by the shedder and metrics.
+ */
+@Singleton
+public class OutboundMemoryBudget {
+
+    private final LongAdder usedBytes = new LongAdder();
+    private final long limitBytes;
+
+    // a limit of zero or less defaults to a quarter of the maximum heap size
+    public OutboundMemoryBudget(@Value("${party-presence-message-broker.outbound-budget.limit-bytes:0}") long limitBytes,
+                                MeterRegistry meterRegistry) {
+        this.limitBytes = limitBytes > 0 ? limitBytes : Runtime.getRuntime().maxMemory() / 4;
+        meterRegistry.gauge("broker.outbound.bytes", usedBytes, LongAdder::sum);
+        meterRegistry.gauge("broker.outbound.limit.bytes", this, OutboundMemoryBudget::getLimitBytes);
+    }
+
+    public void allocate(int bytes) {
+        usedBytes.add(bytes);
+    }
+
+    public void release(int bytes) {
+        usedBytes.add(-bytes);
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.sum();
+    }
+
+    public long getLimitBytes() {
+        return limitBytes;
+    }
+}
@@ -1,6 +1,8 @@
 package ca.ozluminaire.partypresence.service;
 
 import ca.ozluminaire.partypresence.model.Party;
+import ca.ozluminaire.partypresence.util.MessageIdGenerator;
+import io.micronaut.context.annotation.Value;
 import jakarta.inject.Singleton;
 
 import java.util.Map;
@@ -9,10 +11,36 @@ import java.util.concurrent.ConcurrentHashMap;
 @Singleton
 public class PartyService {
 
-    private final Map<Long, Party> partyMap = new ConcurrentHashMap<>();
+    @Value("${party-presence-message-broker.client-presence-aggregation:false}")
+    private Boolean clientPresenceAggregation;
+
+    // one registry per shard, so that shards do not contend on the same map
+    private final Map<Long, Party>[] partyMaps;
+
+    private final ShardService shardService;
+    private final MessageIdGenerator messageIdGenerator;
+
+    @SuppressWarnings("unchecked")
+    public PartyService(ShardService shardService, MessageIdGenerator messageIdGenerator) {
+        this.shardService = shardService;
+        this.messageIdGenerator = messageIdGenerator;
+        this.partyMaps = new Map[shardService.getShardCount()];
+        for (int i = 0; i < partyMaps.length; i++) {
+            partyMaps[i] = new ConcurrentHashMap<>();
+        }
+    }
 
     public Party getParty(Long partyId) {
-        return partyMap.computeIfAbsent(partyId, Party::new);
+        return partyMapOf(partyId).computeIfAbsent(partyId, id -> new Party(id, clientPresenceAggregation, messageIdGenerator));
+    }
+
+    // returns null instead of creating the party if it does not exist
+    public Party findParty(Long partyId) {
+        return partyMapOf(partyId).get(partyId);
+    }
+
+    private Map<Long, Party> partyMapOf(Long partyId) {
+        return partyMaps[shardService.shardOf(partyId)];
     }
 
 }
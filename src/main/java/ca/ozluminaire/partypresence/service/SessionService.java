@@ -9,6 +9,7 @@ import io.grpc.stub.StreamObserver;
 import jakarta.inject.Singleton;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
@@ -20,6 +21,14 @@ public class SessionService {
 
     private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
 
+    private final OutboundMemoryBudget outboundMemoryBudget;
+    private final OutboundLaneMetrics outboundLaneMetrics;
+
+    public SessionService(OutboundMemoryBudget outboundMemoryBudget, OutboundLaneMetrics outboundLaneMetrics) {
+        this.outboundMemoryBudget = outboundMemoryBudget;
+        this.outboundLaneMetrics = outboundLaneMetrics;
+    }
+
     public boolean hasSession(Long id) {
         return sessions.containsKey(id);
     }
@@ -28,21 +37,35 @@ public class SessionService {
         return sessions.get(id);
     }
 
+    public Collection<Session> getSessions() {
+        return sessions.values();
+    }
+
+    // An expired session still in the map is replaced by a new one. The returned session is only EXPIRED if it timed
+    // out between being looked up and being bound, in which case the caller should create it again
     public Session createOrResumeSession(Long id, Client client, Party party, StreamObserver<ClientMessage> responseObserver) {
-        Session session = sessions.computeIfAbsent(id, key -> new Session(key, client, party));
+        Session session = sessions.compute(id, (key, current) -> current == null || current.getSessionState() == SessionState.EXPIRED
+                ? new Session(key, client, party, outboundMemoryBudget, outboundLaneMetrics) : current);
         log.info("Creating {}", session);
-        if (session.getSessionState() == SessionState.ACTIVE) {
-            unbindSession(session);
+        synchronized (session) {
+            if (session.getSessionState() == SessionState.ACTIVE) {
+                unbindSession(session);
+            }
+            bindSession(session, responseObserver);
         }
-        bindSession(session, responseObserver);
         return session;
     }
 
+    // the keepalive timeout checks the session under its lock, so a session bound here is not expired for the idle
+    // time before it was resumed
     public void bindSession(Session session, StreamObserver<ClientMessage> responseObserver) {
-        if (session.getSessionState() == SessionState.NEW || session.getSessionState() == SessionState.INACTIVE) {
-            log.info("Bind {} to responseObserver {}", session, responseObserver.hashCode());
-            session.setSessionState(SessionState.ACTIVE);
-            session.setResponseObserver(responseObserver);
+        synchronized (session) {
+            if (session.getSessionState() == SessionState.NEW || session.getSessionState() == SessionState.INACTIVE) {
+                log.info("Bind {} to responseObserver {}", session, responseObserver.hashCode());
+                session.setSessionState(SessionState.ACTIVE);
+                session.setResponseObserver(responseObserver);
+                session.touch();
+            }
         }
     }
 
@@ -52,14 +75,17 @@ public class SessionService {
                     Optional.ofNullable(session.getResponseObserver()).map(Objects::hashCode).orElse(0));
             session.setSessionState(SessionState.INACTIVE);
             session.setResponseObserver(null);
+            // the client has the whole keepalive timeout to resume from the time its stream went away
+            session.touch();
         }
     }
 
+    // The session may already have been replaced by a new session with the same ID, which is equal to it, so it is
+    // only removed from the map by identity
     public void deleteSession(Session session) {
-        if (session.getSessionState() != SessionState.EXPIRED) {
+        if (session.close()) {
             log.info("Delete {}", session);
-            session.close();
-            sessions.remove(session.getId());
+            sessions.computeIfPresent(session.getId(), (id, current) -> current == session ? null : current);
         }
     }
 
@@ -0,0 +1,96 @@
+package ca.ozluminaire.partypresence.service;
+
+import io.micronaut.context.annotation.Value;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.PreDestroy;
+import java.util.Iterator;
+
+/**
+ * Splits the broker into shards by party ID when sharding is enabled.
+ * <p>
+ * Every shard has a single thread that runs the work of its parties, and its own keepalive timer wheel. Work for a
+ * shard is handed over through the event loop's lock-free MPSC task queue, so the membership of a party only changes
+ * on its own shard thread and its lock is rarely contended. The shards only run tasks and never do I/O, so they are
+ * plain event loops without a selector. The JVM cannot pin threads to cores, so the shard count defaults to the
+ * number of available processors and the OS scheduler keeps each busy shard thread on a core.
+ * <p>
+ * With sharding disabled there is a single shard, and work runs on the calling thread.
+ */
+@Slf4j
+@Singleton
+public class ShardService {
+
+    private final boolean enabled;
+    private final int shardCount;
+    private final DefaultEventLoopGroup eventLoopGroup;
+    private final EventExecutor[] executors;
+    private final HashedWheelTimer[] timers;
+
+    // a shard count of zero or less defaults to the number of available processors
+    public ShardService(@Value("${party-presence-message-broker.sharding.enabled:false}") boolean enabled,
+                        @Value("${party-presence-message-broker.sharding.shard-count:0}") int shardCount) {
+        this.enabled = enabled;
+        this.shardCount = !enabled ? 1 : shardCount > 0 ? shardCount : Runtime.getRuntime().availableProcessors();
+        this.executors = new EventExecutor[this.shardCount];
+        this.timers = new HashedWheelTimer[this.shardCount];
+
+        if (enabled) {
+            log.info("Starting {} shards", this.shardCount);
+            eventLoopGroup = new DefaultEventLoopGroup(this.shardCount, new DefaultThreadFactory("shard"));
+            Iterator<EventExecutor> eventLoops = eventLoopGroup.iterator();
+            for (int i = 0; i < this.shardCount; i++) {
+                executors[i] = eventLoops.next();
+                timers[i] = new HashedWheelTimer(new DefaultThreadFactory("shard-" + i + "-timer"));
+            }
+        } else {
+            eventLoopGroup = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    // party IDs are client generated, so they are mixed before taking the remainder
+    public int shardOf(long partyId) {
+        if (shardCount == 1) {
+            return 0;
+        }
+        long hash = partyId * 0x9E3779B97F4A7C15L;
+        return (int) Math.floorMod(hash ^ (hash >>> 32), (long) shardCount);
+    }
+
+    // runs the task inline if the calling thread is the shard's own thread
+    public void execute(int shard, Runnable task) {
+        if (enabled && !executors[shard].inEventLoop()) {
+            executors[shard].execute(task);
+        } else {
+            task.run();
+        }
+    }
+
+    // null with sharding disabled
+    public HashedWheelTimer getTimer(int shard) {
+        return timers[shard];
+    }
+
+    @PreDestroy
+    void stop() {
+        if (enabled) {
+            for (HashedWheelTimer timer : timers) {
+                timer.stop();
+            }
+            eventLoopGroup.shutdownGracefully();
+        }
+    }
+}
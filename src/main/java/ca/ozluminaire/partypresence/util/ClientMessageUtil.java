@@ -3,23 +3,25 @@ package ca.ozluminaire.partypresence.util;
 import ca.ozluminaire.partypresence.ClientMessage;
 import ca.ozluminaire.partypresence.ClientMessageType;
 
-import java.util.Random;
-
 public class ClientMessageUtil {
 
-    private static final Random random = new Random();
+    // an ACK is built for almost every inbound message, so the builder is reused per thread.
+    // build() hands the ack ID list over to the message, so reusing the builder is safe
+    private static final ThreadLocal<ClientMessage.Builder> ackMessageBuilder = ThreadLocal.withInitial(ClientMessage::newBuilder);
+
     public static ClientMessage buildAckMessage(long messageId) {
-        return ClientMessage.newBuilder()
+        return ackMessageBuilder.get().clear()
                 .setMessageType(ClientMessageType.ACK)
                 .setTimestamp(System.currentTimeMillis())
                 .addAckMessageIds(messageId)
                 .build();
     }
 
-    public static ClientMessage.Builder getBuilderFor(ClientMessageType type) {
+    // message IDs come from the MessageIdGenerator of the application context
+    public static ClientMessage.Builder getBuilderFor(ClientMessageType type, long messageId) {
         return ClientMessage.newBuilder()
                 .setMessageType(type)
-                .setMessageId(random.nextLong())
+                .setMessageId(messageId)
                 .setTimestamp(System.currentTimeMillis());
     }
 
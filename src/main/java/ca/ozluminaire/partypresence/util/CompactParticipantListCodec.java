@@ -0,0 +1,46 @@
+package ca.ozluminaire.partypresence.util;
+
+import ca.ozluminaire.partypresence.ClientSessionIdEntry;
+import ca.ozluminaire.partypresence.CompactParticipantList;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// Converts participant lists between LIST entries and the CompactParticipantList with delta encoded client IDs
+public class CompactParticipantListCodec {
+
+    private CompactParticipantListCodec() {
+    }
+
+    public static CompactParticipantList encode(Collection<ClientSessionIdEntry> entries) {
+        List<ClientSessionIdEntry> sortedEntries = new ArrayList<>(entries);
+        sortedEntries.sort((first, second) -> Long.compareUnsigned(first.getClientId(), second.getClientId()));
+
+        CompactParticipantList.Builder compactList = CompactParticipantList.newBuilder();
+        long previousClientId = 0;
+        for (ClientSessionIdEntry entry : sortedEntries) {
+            compactList.addClientIdDeltas(entry.getClientId() - previousClientId);
+            previousClientId = entry.getClientId();
+
+            compactList.addSessionCounts(entry.getSessionIdCount());
+            compactList.addAllSessionIds(entry.getSessionIdList());
+        }
+        return compactList.build();
+    }
+
+    public static List<ClientSessionIdEntry> decode(CompactParticipantList compactList) {
+        List<ClientSessionIdEntry> entries = new ArrayList<>(compactList.getClientIdDeltasCount());
+        long clientId = 0;
+        int sessionIndex = 0;
+        for (int i = 0; i < compactList.getClientIdDeltasCount(); i++) {
+            clientId += compactList.getClientIdDeltas(i);
+            ClientSessionIdEntry.Builder entry = ClientSessionIdEntry.newBuilder().setClientId(clientId);
+            for (int j = 0; j < compactList.getSessionCounts(i); j++) {
+                entry.addSessionId(compactList.getSessionIds(sessionIndex++));
+            }
+            entries.add(entry.build());
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,30 @@
+package ca.ozluminaire.partypresence.util;
+
+/**
+ * A bounded window of recently seen message IDs. When the window is full, the oldest ID is evicted.
+ */
+public class DeduplicationWindow {
+
+    private final long[] messageIds;
+    private int next;
+    private int size;
+
+    public DeduplicationWindow(int capacity) {
+        this.messageIds = new long[capacity];
+    }
+
+    // returns false if the message ID is already in the window
+    public synchronized boolean add(long messageId) {
+        for (int i = 0; i < size; i++) {
+            if (messageIds[i] == messageId) {
+                return false;
+            }
+        }
+        messageIds[next] = messageId;
+        next = (next + 1) % messageIds.length;
+        if (size < messageIds.length) {
+            size++;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,87 @@
+package ca.ozluminaire.partypresence.util;
+
+import io.micronaut.context.annotation.Value;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates cluster-unique message IDs without shared contended state.
+ * <p>
+ * IDs are laid out snowflake style, from the most significant bit:
+ * <pre>
+ *  1 bit   always zero, so IDs stay positive
+ * 41 bits  milliseconds since {@link #EPOCH_MILLIS}
+ *  8 bits  sequence within the millisecond
+ * 10 bits  node ID
+ *  4 bits  stripe
+ * </pre>
+ * Each thread draws from the stripe selected by its thread ID, and each stripe keeps its own clock, so IDs are
+ * monotonic per thread and callers only contend when their threads share a stripe. Every stripe can generate 256 IDs
+ * per millisecond. When it runs out within a millisecond, it borrows from the next millisecond instead of waiting for
+ * the clock, but never more than {@link #MAX_LEAD_MILLIS} ahead of it. Beyond that, callers park until the clock
+ * catches up, so a shard thread that runs out of IDs gives up its core instead of spinning on it. Since stripe clocks
+ * start from the current time, the bound is also what keeps a restarted node from reusing the IDs it generated ahead
+ * of time before the restart.
+ */
+@Slf4j
+@Singleton
+public class MessageIdGenerator {
+
+    public static final long EPOCH_MILLIS = 1609459200000L; // 2021-01-01T00:00:00Z
+
+    private static final int SEQUENCE_BITS = 8;
+    private static final int NODE_ID_BITS = 10;
+    private static final int STRIPE_BITS = 4;
+
+    public static final int MAX_NODE_ID = (1 << NODE_ID_BITS) - 1;
+
+    // how far a stripe clock may run ahead of the wall clock, far below the time it takes to restart a node
+    static final long MAX_LEAD_MILLIS = 1000;
+
+    private static final int STRIPE_MASK = (1 << STRIPE_BITS) - 1;
+    // stripes are spaced a cache line apart to avoid false sharing between threads
+    private static final int STRIPE_SPACING = 8;
+
+    private final long nodeIdBits;
+    private final AtomicLongArray stripeClocks = new AtomicLongArray((STRIPE_MASK + 1) * STRIPE_SPACING);
+
+    // every broker node in a cluster needs a unique node ID
+    public MessageIdGenerator(@Value("${party-presence-message-broker.node-id:0}") int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node ID must be between 0 and " + MAX_NODE_ID + ", got " + nodeId);
+        }
+        log.info("Using node ID {} for message IDs", nodeId);
+        this.nodeIdBits = (long) nodeId << STRIPE_BITS;
+    }
+
+    public long nextId() {
+        final int stripe = (int) Thread.currentThread().getId() & STRIPE_MASK;
+        final int index = stripe * STRIPE_SPACING;
+        while (true) {
+            final long nowMillis = System.currentTimeMillis() - EPOCH_MILLIS;
+            final long last = stripeClocks.get(index);
+            final long next = Math.max(last + 1, nowMillis << SEQUENCE_BITS);
+            final long excessLeadMillis = (next >>> SEQUENCE_BITS) - nowMillis - MAX_LEAD_MILLIS;
+            if (excessLeadMillis > 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(excessLeadMillis));
+                continue;
+            }
+            if (stripeClocks.compareAndSet(index, last, next)) {
+                return next << (NODE_ID_BITS + STRIPE_BITS) | nodeIdBits | stripe;
+            }
+        }
+    }
+
+    // wall clock time in an ID, give or take the lead of its stripe
+    static long timestampMillisOf(long messageId) {
+        return (messageId >>> (SEQUENCE_BITS + NODE_ID_BITS + STRIPE_BITS)) + EPOCH_MILLIS;
+    }
+
+    static int nodeIdOf(long messageId) {
+        return (int) (messageId >>> STRIPE_BITS) & MAX_NODE_ID;
+    }
+}
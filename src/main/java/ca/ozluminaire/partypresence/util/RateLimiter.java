@@ -0,0 +1,50 @@
+package ca.ozluminaire.partypresence.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A lock-free, allocation-free token bucket.
+ * <p>
+ * Implemented as a generic cell rate algorithm: instead of a token count and a refill timestamp, only the theoretical
+ * arrival time of the next message is kept, so the whole bucket state fits in a single atomic long.
+ */
+public class RateLimiter {
+
+    private final long emissionIntervalNanos;
+    private final long burstToleranceNanos;
+    private final LongSupplier nanoClock;
+    private final AtomicLong theoreticalArrivalTime;
+
+    public RateLimiter(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, System::nanoTime);
+    }
+
+    RateLimiter(double permitsPerSecond, int burst, LongSupplier nanoClock) {
+        this.emissionIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.burstToleranceNanos = emissionIntervalNanos * Math.max(burst - 1, 0);
+        this.nanoClock = nanoClock;
+        this.theoreticalArrivalTime = new AtomicLong(nanoClock.getAsLong());
+    }
+
+    public boolean tryAcquire() {
+        final long now = nanoClock.getAsLong();
+        while (true) {
+            long arrivalTime = theoreticalArrivalTime.get();
+            long next = arrivalTime - now > 0 ? arrivalTime : now;
+            if (next - now > burstToleranceNanos) {
+                return false;
+            }
+            if (theoreticalArrivalTime.compareAndSet(arrivalTime, next + emissionIntervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    // true once the whole burst has refilled. A full bucket is the same as a new one, so it can be dropped and
+    // recreated later without losing any state
+    public boolean isFull() {
+        return theoreticalArrivalTime.get() - nanoClock.getAsLong() <= 0;
+    }
+}
@@ -0,0 +1,43 @@
+package ca.ozluminaire.partypresence;
+
+import com.google.protobuf.Descriptors;
+import io.micronaut.core.annotation.TypeHint;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItems;
+
+/**
+ * Checks that every message, builder and enum generated from the proto files has a reflection hint for the native
+ * image, so that adding a message without a hint fails the build instead of the native binary.
+ */
+class NativeImageHintsTest {
+
+    @Test
+    void everyProtoTypeHasAHint() {
+        Set<String> hintedNames = Arrays.stream(NativeImageHints.class.getAnnotation(TypeHint.class).value())
+                .map(Class::getName)
+                .collect(Collectors.toSet());
+
+        List<String> protoNames = new ArrayList<>();
+        for (Descriptors.FileDescriptor file : List.of(ClientMessaging.getDescriptor(),
+                PresenceQueryOuterClass.getDescriptor(), BrokerAdminOuterClass.getDescriptor())) {
+            String javaPackage = file.getOptions().getJavaPackage();
+            for (Descriptors.Descriptor message : file.getMessageTypes()) {
+                protoNames.add(javaPackage + "." + message.getName());
+                protoNames.add(javaPackage + "." + message.getName() + "$Builder");
+            }
+            for (Descriptors.EnumDescriptor enumType : file.getEnumTypes()) {
+                protoNames.add(javaPackage + "." + enumType.getName());
+            }
+        }
+
+        assertThat(hintedNames, hasItems(protoNames.toArray(new String[0])));
+    }
+}
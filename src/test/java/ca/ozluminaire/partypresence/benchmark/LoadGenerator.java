@@ -0,0 +1,195 @@
+package ca.ozluminaire.partypresence.benchmark;
+
+import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
+import ca.ozluminaire.partypresence.ClientMessagingEndpointGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.StreamObserver;
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.core.io.socket.SocketUtils;
+import io.micronaut.runtime.server.EmbeddedServer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the same party workload against an embedded broker with different shard counts, and reports the throughput
+ * of each. Every client joins one of many parties, then keeps a pipeline of INTEREST messages going, which rebuild
+ * its participant list on the party's shard. The shard counts are given as arguments, and 0 runs without sharding:
+ * <pre>
+ * ./gradlew loadGenerator -Pload.shards="0 1 2 4 8"
+ * </pre>
+ * The clients run in the same JVM as the broker, so the numbers are only comparable between runs on the same machine.
+ * No results have been recorded yet, so whether sharding helps a given deployment has to be measured with it first.
+ * The party and client counts and the measured seconds can be changed with the load.parties, load.clients-per-party
+ * and load.seconds system properties.
+ */
+@Slf4j
+public class LoadGenerator {
+
+    private static final int PARTIES = Integer.getInteger("load.parties", 256);
+    private static final int CLIENTS_PER_PARTY = Integer.getInteger("load.clients-per-party", 16);
+    private static final int SECONDS = Integer.getInteger("load.seconds", 10);
+    private static final int WARMUP_SECONDS = 5;
+    private static final int PIPELINE_DEPTH = 8;
+    private static final int CHANNELS = 8;
+
+    public static void main(String[] args) throws Exception {
+        int[] shardCounts = args.length > 0
+                ? Arrays.stream(String.join(" ", args).trim().split("\\s+")).mapToInt(Integer::parseInt).toArray()
+                : new int[]{0, 1, 2, 4, Runtime.getRuntime().availableProcessors()};
+
+        Map<Integer, Long> results = new HashMap<>();
+        for (int shardCount : shardCounts) {
+            results.put(shardCount, run(shardCount));
+        }
+        log.info("{} parties, {} clients per party", PARTIES, CLIENTS_PER_PARTY);
+        for (int shardCount : shardCounts) {
+            log.info("{}: {} messages/s", shardCount == 0 ? "unsharded" : shardCount + " shards", results.get(shardCount));
+        }
+    }
+
+    private static long run(int shardCount) throws Exception {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("grpc.server.port", SocketUtils.findAvailableTcpPort());
+        properties.put("party-presence-message-broker.sharding.enabled", shardCount > 0);
+        properties.put("party-presence-message-broker.sharding.shard-count", shardCount);
+        properties.put("party-presence-message-broker.rate-limit.session.messages-per-second", 0);
+        properties.put("party-presence-message-broker.rate-limit.client.messages-per-second", 0);
+        EmbeddedServer server = ApplicationContext.run(EmbeddedServer.class, properties);
+
+        List<ManagedChannel> channels = new ArrayList<>();
+        for (int i = 0; i < CHANNELS; i++) {
+            channels.add(ManagedChannelBuilder.forAddress(server.getHost(), server.getPort()).usePlaintext().build());
+        }
+        LongAdder acks = new LongAdder();
+        List<LoadClient> clients = new ArrayList<>();
+        List<Thread> senders = new ArrayList<>();
+        try {
+            for (int party = 1; party <= PARTIES; party++) {
+                for (int i = 0; i < CLIENTS_PER_PARTY; i++) {
+                    LoadClient client = new LoadClient(channels.get(clients.size() % CHANNELS), party, acks);
+                    client.join().get(10, TimeUnit.SECONDS);
+                    clients.add(client);
+                }
+            }
+            for (LoadClient client : clients) {
+                Thread sender = new Thread(client::sendInterestMessages);
+                sender.setDaemon(true);
+                senders.add(sender);
+            }
+            senders.forEach(Thread::start);
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_SECONDS));
+            acks.reset();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(SECONDS));
+            long throughput = acks.sum() / SECONDS;
+            log.info("{} shards: {} messages/s", shardCount, throughput);
+            return throughput;
+        } finally {
+            senders.forEach(Thread::interrupt);
+            clients.forEach(LoadClient::close);
+            channels.forEach(ManagedChannel::shutdownNow);
+            server.getApplicationContext().stop();
+        }
+    }
+
+    private static class LoadClient implements StreamObserver<ClientMessage> {
+
+        private final long clientId = ThreadLocalRandom.current().nextLong();
+        private final long partyId;
+        private final LongAdder acks;
+        private final StreamObserver<ClientMessage> requestObserver;
+        private final CompletableFuture<Void> joined = new CompletableFuture<>();
+        private final Semaphore pipeline = new Semaphore(PIPELINE_DEPTH);
+
+        LoadClient(ManagedChannel channel, long partyId, LongAdder acks) {
+            this.partyId = partyId;
+            this.acks = acks;
+            this.requestObserver = ClientMessagingEndpointGrpc.newStub(channel).beginStream(this);
+        }
+
+        CompletableFuture<Void> join() {
+            send(ClientMessage.newBuilder()
+                    .setMessageType(ClientMessageType.JOIN)
+                    .setMessageId(ThreadLocalRandom.current().nextLong())
+                    .setSessionId(ThreadLocalRandom.current().nextLong())
+                    .setClientId(clientId)
+                    .setPartyId(partyId)
+                    .build());
+            return joined;
+        }
+
+        // alternates between following every client in the party and following a single client
+        void sendInterestMessages() {
+            try {
+                boolean filtered = false;
+                while (!Thread.currentThread().isInterrupted()) {
+                    pipeline.acquire();
+                    ClientMessage.Builder interestMessage = ClientMessage.newBuilder()
+                            .setMessageType(ClientMessageType.INTEREST)
+                            .setMessageId(ThreadLocalRandom.current().nextLong())
+                            .setPartyId(partyId);
+                    if (filtered) {
+                        interestMessage.addInterestClientIds(clientId);
+                    }
+                    filtered = !filtered;
+                    send(interestMessage.build());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized void close() {
+            requestObserver.onCompleted();
+        }
+
+        private synchronized void send(ClientMessage message) {
+            requestObserver.onNext(message);
+        }
+
+        @Override
+        public void onNext(ClientMessage message) {
+            switch (message.getMessageType()) {
+                case ACK:
+                    if (!joined.complete(null)) {
+                        acks.increment();
+                        pipeline.release();
+                    }
+                    break;
+                case ERROR:
+                    joined.completeExceptionally(new IllegalStateException(message.getStatusCode().name()));
+                    break;
+                default:
+                    // broker messages are acked, so they do not pile up inflight and get the session shed
+                    send(ClientMessage.newBuilder()
+                            .setMessageType(ClientMessageType.ACK)
+                            .setMessageId(ThreadLocalRandom.current().nextLong())
+                            .addAckMessageIds(message.getMessageId())
+                            .build());
+                    break;
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            joined.completeExceptionally(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            joined.completeExceptionally(new IllegalStateException("stream completed"));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package ca.ozluminaire.partypresence.benchmark;
+
+import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
+import ca.ozluminaire.partypresence.ClientSessionIdEntry;
+import ca.ozluminaire.partypresence.util.CompactParticipantListCodec;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares the size and the encode cost of LIST messages in the standard and the compact encoding, for party sizes
+ * from 100 to 100k clients:
+ * <pre>
+ * ./gradlew participantListBenchmark
+ * </pre>
+ * Every tenth client has a second session. The first half of the rounds of each party size warm up the JIT, and the
+ * encode times are averaged over the other half. The number of rounds can be changed with the benchmark.rounds system
+ * property.
+ */
+@Slf4j
+public class ParticipantListBenchmark {
+
+    private static final int[] PARTY_SIZES = {100, 1_000, 10_000, 100_000};
+    private static final int ROUNDS = Integer.getInteger("benchmark.rounds", 20);
+
+    // keeps the JIT from dropping the serialized messages
+    private static volatile int sink;
+
+    public static void main(String[] args) throws IOException {
+        log.info(String.format("%10s %14s %14s %14s %12s %12s", "clients", "standard B", "compact B",
+                "compact gz B", "standard us", "compact us"));
+        for (int partySize : PARTY_SIZES) {
+            List<ClientSessionIdEntry> entries = randomEntries(partySize);
+
+            long standardNanos = 0;
+            long compactNanos = 0;
+            ClientMessage standardList = null;
+            ClientMessage compactList = null;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                standardList = ClientMessage.newBuilder()
+                        .setMessageType(ClientMessageType.LIST)
+                        .addAllParticipantClientIds(entries)
+                        .build();
+                sink += standardList.toByteArray().length;
+                long middle = System.nanoTime();
+                compactList = ClientMessage.newBuilder()
+                        .setMessageType(ClientMessageType.LIST)
+                        .setCompactParticipants(CompactParticipantListCodec.encode(entries))
+                        .build();
+                sink += compactList.toByteArray().length;
+                long end = System.nanoTime();
+                if (round >= ROUNDS / 2) {
+                    standardNanos += middle - start;
+                    compactNanos += end - middle;
+                }
+            }
+
+            int measuredRounds = ROUNDS - ROUNDS / 2;
+            log.info(String.format("%10d %14d %14d %14d %12d %12d", partySize, standardList.getSerializedSize(),
+                    compactList.getSerializedSize(), gzipSize(compactList.toByteArray()),
+                    standardNanos / measuredRounds / 1000, compactNanos / measuredRounds / 1000));
+        }
+    }
+
+    private static List<ClientSessionIdEntry> randomEntries(int clientCount) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<ClientSessionIdEntry> entries = new ArrayList<>(clientCount);
+        for (int i = 0; i < clientCount; i++) {
+            ClientSessionIdEntry.Builder entry = ClientSessionIdEntry.newBuilder()
+                    .setClientId(random.nextLong())
+                    .addSessionId(random.nextLong());
+            if (i % 10 == 0) {
+                entry.addSessionId(random.nextLong());
+            }
+            entries.add(entry.build());
+        }
+        return entries;
+    }
+
+    private static int gzipSize(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(bytes);
+        }
+        return compressed.size();
+    }
+}
@@ -0,0 +1,198 @@
+package ca.ozluminaire.partypresence.benchmark;
+
+import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
+import ca.ozluminaire.partypresence.ClientMessagingEndpointGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Starts a broker process and measures the time from process start to the first acked JOIN, and the PING throughput
+ * over the first seconds of its life, which is what a node added by the autoscaler goes through. Run it against the
+ * shaded jar and the native image to compare them:
+ * <pre>
+ * ./gradlew startupBenchmark
+ * ./gradlew nativeCompile startupBenchmark -Pbenchmark.command=build/native/nativeCompile/PartyPresenceMessageBroker
+ * </pre>
+ * The port, the number of clients and the measured seconds can be changed with the benchmark.port,
+ * benchmark.clients and benchmark.seconds system properties.
+ */
+@Slf4j
+public class StartupBenchmark {
+
+    private static final int PORT = Integer.getInteger("benchmark.port", 50151);
+    private static final int CLIENTS = Integer.getInteger("benchmark.clients", 64);
+    private static final int SECONDS = Integer.getInteger("benchmark.seconds", 10);
+    private static final int PIPELINE_DEPTH = 16;
+    private static final long STARTUP_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(2);
+    private static final long PARTY_ID = 1;
+
+    public static void main(String[] args) throws Exception {
+        List<String> command = Arrays.asList(String.join(" ", args).trim().split("\\s+"));
+        ProcessBuilder processBuilder = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        processBuilder.environment().put("GRPC_SERVER_PORT", String.valueOf(PORT));
+        // the benchmark clients send far more messages than real clients would
+        processBuilder.environment().put("PARTY_PRESENCE_MESSAGE_BROKER_RATE_LIMIT_SESSION_MESSAGES_PER_SECOND", "0");
+        processBuilder.environment().put("PARTY_PRESENCE_MESSAGE_BROKER_RATE_LIMIT_CLIENT_MESSAGES_PER_SECOND", "0");
+
+        log.info("Starting {}", command);
+        final long start = System.nanoTime();
+        Process process = processBuilder.start();
+        ManagedChannel channel = null;
+        try {
+            channel = awaitFirstJoinAck(process, start);
+            log.info("Time to first JOIN ack: {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            measureThroughput(channel);
+        } finally {
+            if (channel != null) {
+                channel.shutdownNow();
+            }
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    // a channel that failed to connect backs off exponentially, so every attempt uses a new one
+    private static ManagedChannel awaitFirstJoinAck(Process process, long start) throws InterruptedException {
+        while (System.nanoTime() - start < STARTUP_TIMEOUT_NANOS) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("The broker exited with " + process.exitValue());
+            }
+            ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", PORT).usePlaintext().build();
+            BenchmarkClient client = new BenchmarkClient(channel, new LongAdder());
+            try {
+                client.join().get(1, TimeUnit.SECONDS);
+                client.close();
+                return channel;
+            } catch (Exception e) {
+                channel.shutdownNow();
+                Thread.sleep(5);
+            }
+        }
+        throw new IllegalStateException("The broker did not ack a JOIN in time");
+    }
+
+    private static void measureThroughput(ManagedChannel channel) throws Exception {
+        LongAdder pingAcks = new LongAdder();
+        List<BenchmarkClient> clients = new ArrayList<>();
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            BenchmarkClient client = new BenchmarkClient(channel, pingAcks);
+            client.join().get(10, TimeUnit.SECONDS);
+            clients.add(client);
+            Thread sender = new Thread(client::sendPings, "benchmark-client-" + i);
+            sender.setDaemon(true);
+            senders.add(sender);
+        }
+        senders.forEach(Thread::start);
+
+        long total = 0;
+        for (int second = 1; second <= SECONDS; second++) {
+            Thread.sleep(1000);
+            long acks = pingAcks.sumThenReset();
+            total += acks;
+            log.info("Second {}: {} PING acks/s", second, acks);
+        }
+        log.info("Average over the first {} seconds: {} PING acks/s", SECONDS, total / SECONDS);
+
+        senders.forEach(Thread::interrupt);
+        clients.forEach(BenchmarkClient::close);
+    }
+
+    private static class BenchmarkClient implements StreamObserver<ClientMessage> {
+
+        private final long clientId = ThreadLocalRandom.current().nextLong();
+        private final LongAdder pingAcks;
+        private final StreamObserver<ClientMessage> requestObserver;
+        private final CompletableFuture<Void> joined = new CompletableFuture<>();
+        private final Semaphore pipeline = new Semaphore(PIPELINE_DEPTH);
+
+        BenchmarkClient(ManagedChannel channel, LongAdder pingAcks) {
+            this.pingAcks = pingAcks;
+            this.requestObserver = ClientMessagingEndpointGrpc.newStub(channel).beginStream(this);
+        }
+
+        CompletableFuture<Void> join() {
+            send(ClientMessage.newBuilder()
+                    .setMessageType(ClientMessageType.JOIN)
+                    .setMessageId(ThreadLocalRandom.current().nextLong())
+                    .setSessionId(ThreadLocalRandom.current().nextLong())
+                    .setClientId(clientId)
+                    .setPartyId(PARTY_ID)
+                    .build());
+            return joined;
+        }
+
+        void sendPings() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    pipeline.acquire();
+                    send(ClientMessage.newBuilder()
+                            .setMessageType(ClientMessageType.PING)
+                            .setMessageId(ThreadLocalRandom.current().nextLong())
+                            .build());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                requestObserver.onCompleted();
+            }
+        }
+
+        private synchronized void send(ClientMessage message) {
+            requestObserver.onNext(message);
+        }
+
+        @Override
+        public void onNext(ClientMessage message) {
+            switch (message.getMessageType()) {
+                case ACK:
+                    if (!joined.complete(null)) {
+                        pingAcks.increment();
+                        pipeline.release();
+                    }
+                    break;
+                case ERROR:
+                    joined.completeExceptionally(new IllegalStateException(message.getStatusCode().name()));
+                    break;
+                default:
+                    // presence messages from the other benchmark clients are acked, so they do not pile up inflight
+                    send(ClientMessage.newBuilder()
+                            .setMessageType(ClientMessageType.ACK)
+                            .setMessageId(ThreadLocalRandom.current().nextLong())
+                            .addAckMessageIds(message.getMessageId())
+                            .build());
+                    break;
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            joined.completeExceptionally(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            joined.completeExceptionally(new IllegalStateException("stream completed"));
+        }
+    }
+}
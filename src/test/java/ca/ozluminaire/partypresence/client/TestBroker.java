@@ -0,0 +1,67 @@
+package ca.ozluminaire.partypresence.client;
+
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.core.io.socket.SocketUtils;
+import io.micronaut.runtime.server.EmbeddedServer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+
+/**
+ * A broker started on a free gRPC port for an integration test, with a client factory connected to it.
+ */
+public class TestBroker {
+
+    private final EmbeddedServer embeddedServer;
+    private final TestClientFactory clientFactory;
+
+    private TestBroker(EmbeddedServer embeddedServer) {
+        this.embeddedServer = embeddedServer;
+        this.clientFactory = new TestClientFactory(getTarget());
+    }
+
+    public static TestBroker start() {
+        return start(Map.of());
+    }
+
+    // the properties are added to the application configuration, on top of the gRPC port
+    public static TestBroker start(Map<String, Object> properties) {
+        Map<String, Object> configuration = new HashMap<>(properties);
+        configuration.put("grpc.server.port", SocketUtils.findAvailableTcpPort());
+        return new TestBroker(ApplicationContext.run(EmbeddedServer.class, configuration));
+    }
+
+    public String getTarget() {
+        return embeddedServer.getHost() + ":" + embeddedServer.getPort();
+    }
+
+    public TestClientFactory getClientFactory() {
+        return clientFactory;
+    }
+
+    public ApplicationContext getApplicationContext() {
+        return embeddedServer.getApplicationContext();
+    }
+
+    public <T> T getBean(Class<T> beanType) {
+        return getApplicationContext().getBean(beanType);
+    }
+
+    public boolean isRunning() {
+        return getApplicationContext().isRunning();
+    }
+
+    public void stop() {
+        if (isRunning()) {
+            getApplicationContext().stop();
+        }
+    }
+
+    public static void waitUntil(Callable<Boolean> condition) {
+        await().atMost(30, TimeUnit.SECONDS).pollInterval(50, TimeUnit.MILLISECONDS).until(condition);
+    }
+}
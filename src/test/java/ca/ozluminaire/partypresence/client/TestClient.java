@@ -82,4 +82,9 @@ public class TestClient {
         return this.getReceivedMessages().stream().filter(predicate).collect(Collectors.toList());
     }
 
+    public boolean isAcked(ClientMessage message) {
+        return !getMatchingMessages(received -> received.getMessageType() == ClientMessageType.ACK
+                && received.getAckMessageIdsList().contains(message.getMessageId())).isEmpty();
+    }
+
 }
@@ -0,0 +1,54 @@
+package ca.ozluminaire.partypresence.client;
+
+import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Client messages for integration tests, each with a random message ID.
+ */
+public final class TestMessages {
+
+    private TestMessages() {
+    }
+
+    public static ClientMessage joinMessage(long clientId, long partyId, long sessionId) {
+        return joinMessage(clientId, partyId, sessionId, List.of());
+    }
+
+    public static ClientMessage joinMessage(long clientId, long partyId, long sessionId, Collection<Long> interestClientIds) {
+        return ClientMessage.newBuilder()
+                .setClientId(clientId).setPartyId(partyId).setSessionId(sessionId)
+                .addAllInterestClientIds(interestClientIds)
+                .setMessageId(randomId()).setMessageType(ClientMessageType.JOIN).build();
+    }
+
+    // leaves the only party of the stream
+    public static ClientMessage leaveMessage() {
+        return leaveMessage(0);
+    }
+
+    public static ClientMessage leaveMessage(long partyId) {
+        return ClientMessage.newBuilder()
+                .setPartyId(partyId)
+                .setMessageId(randomId()).setMessageType(ClientMessageType.LEAVE).build();
+    }
+
+    public static ClientMessage pingMessage() {
+        return ClientMessage.newBuilder()
+                .setMessageId(randomId()).setMessageType(ClientMessageType.PING).build();
+    }
+
+    public static ClientMessage interestMessage(long partyId, Collection<Long> interestClientIds) {
+        return ClientMessage.newBuilder()
+                .setPartyId(partyId).addAllInterestClientIds(interestClientIds)
+                .setMessageId(randomId()).setMessageType(ClientMessageType.INTEREST).build();
+    }
+
+    public static long randomId() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+}
@@ -0,0 +1,167 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
+import ca.ozluminaire.partypresence.ClientSessionIdEntry;
+import ca.ozluminaire.partypresence.StatusCode;
+import ca.ozluminaire.partypresence.client.TestBroker;
+import ca.ozluminaire.partypresence.client.TestClient;
+import ca.ozluminaire.partypresence.client.TestClientFactory;
+import ca.ozluminaire.partypresence.service.PartyService;
+import ca.ozluminaire.partypresence.service.SessionService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import static ca.ozluminaire.partypresence.client.TestBroker.waitUntil;
+import static ca.ozluminaire.partypresence.client.TestMessages.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Runs the broker with client presence aggregation, and checks that a client on two devices is broadcast once when
+ * its first device joins and once when its last device leaves or times out, while both devices stay listed in LIST
+ * messages and in the party snapshot.
+ */
+class ClientAggregationIntegrationTest {
+
+    private static final long PARTY_ID = 7007L;
+    private static final long CLIENT_ID = 1L;
+    private static final long OBSERVER_ID = 2L;
+    private static final int KEEPALIVE_TIMEOUT_SECONDS = 2;
+
+    private TestBroker broker;
+    private SessionService sessionService;
+    private PartyService partyService;
+    private ScheduledExecutorService pinger;
+
+    private TestClient observer;
+    private TestClient firstDevice;
+    private TestClient secondDevice;
+    private final Set<TestClient> pingedClients = ConcurrentHashMap.newKeySet();
+    private final long firstSessionId = randomId();
+    private final long secondSessionId = randomId();
+
+    @BeforeEach
+    void setup() {
+        broker = TestBroker.start(Map.of(
+                "party-presence-message-broker.keepalive-timeout", KEEPALIVE_TIMEOUT_SECONDS,
+                "party-presence-message-broker.client-presence-aggregation", true));
+        sessionService = broker.getBean(SessionService.class);
+        partyService = broker.getBean(PartyService.class);
+        pinger = Executors.newSingleThreadScheduledExecutor();
+
+        observer = broker.getClientFactory().create(OBSERVER_ID);
+        observer.sendMessage(joinMessage(OBSERVER_ID, PARTY_ID, randomId()));
+        waitUntil(() -> observer.getClientSet().contains(OBSERVER_ID));
+
+        // a factory keeps one stream per client ID, so the second device of the client connects through its own
+        firstDevice = broker.getClientFactory().create(CLIENT_ID);
+        firstDevice.sendMessage(joinMessage(CLIENT_ID, PARTY_ID, firstSessionId));
+        waitUntil(() -> observer.getClientSet().contains(CLIENT_ID));
+
+        secondDevice = new TestClientFactory(broker.getTarget()).create(CLIENT_ID);
+        secondDevice.sendMessage(joinMessage(CLIENT_ID, PARTY_ID, secondSessionId));
+        waitUntil(() -> listedSessionIds(secondDevice).equals(Set.of(firstSessionId, secondSessionId)));
+
+        pingedClients.addAll(List.of(observer, firstDevice, secondDevice));
+        pinger.scheduleAtFixedRate(() -> pingedClients.forEach(client -> client.sendMessage(pingMessage())),
+                0, 500, TimeUnit.MILLISECONDS);
+    }
+
+    @AfterEach
+    void teardown() {
+        pinger.shutdownNow();
+        broker.stop();
+    }
+
+    @Test
+    void secondDeviceIsListedButNotBroadcast() {
+        assertThat("the party snapshot has both devices", snapshotSessionIds(),
+                is(Set.of(firstSessionId, secondSessionId)));
+        assertThat(broadcasts(ClientMessageType.JOIN), hasSize(1));
+        assertThat("the JOIN stands for the client", broadcasts(ClientMessageType.JOIN).get(0).getSessionId(), is(0L));
+
+        leave(secondDevice);
+        waitUntil(() -> snapshotSessionIds().equals(Set.of(firstSessionId)));
+        assertThat("the client is still online on its first device", observer.getClientSet(), hasItem(CLIENT_ID));
+        assertThat(broadcasts(ClientMessageType.LEAVE), is(empty()));
+
+        leave(firstDevice);
+        waitUntil(() -> !observer.getClientSet().contains(CLIENT_ID));
+        assertThat(snapshotSessionIds(), is(empty()));
+        List<ClientMessage> leaves = broadcasts(ClientMessageType.LEAVE);
+        assertThat(leaves, hasSize(1));
+        assertThat(leaves.get(0).getStatusCode(), is(StatusCode.OK));
+        assertThat("the LEAVE stands for the client", leaves.get(0).getSessionId(), is(0L));
+    }
+
+    @Test
+    void lastDeviceTimeoutIsBroadcast() {
+        disconnect(secondDevice);
+        waitUntil(() -> !sessionService.hasSession(secondSessionId));
+        assertThat("the client is still online on its first device", observer.getClientSet(), hasItem(CLIENT_ID));
+        assertThat(broadcasts(ClientMessageType.LEAVE), is(empty()));
+
+        disconnect(firstDevice);
+        waitUntil(() -> !sessionService.hasSession(firstSessionId) && !observer.getClientSet().contains(CLIENT_ID));
+        assertThat(snapshotSessionIds(), is(empty()));
+        List<ClientMessage> leaves = broadcasts(ClientMessageType.LEAVE);
+        assertThat(leaves, hasSize(1));
+        assertThat(leaves.get(0).getStatusCode(), is(StatusCode.CLIENT_TIMEOUT));
+        assertThat(leaves.get(0).getSessionId(), is(0L));
+    }
+
+    private void leave(TestClient client) {
+        onPinger(() -> {
+            pingedClients.remove(client);
+            client.sendMessage(leaveMessage());
+        });
+    }
+
+    private void disconnect(TestClient client) {
+        onPinger(() -> {
+            pingedClients.remove(client);
+            client.closeStream();
+        });
+    }
+
+    // the clients are only written from the pinger thread once joined, since gRPC client streams must not be written
+    // concurrently
+    private void onPinger(Runnable task) {
+        try {
+            pinger.submit(task).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // JOIN or LEAVE messages of the client received by the observer
+    private List<ClientMessage> broadcasts(ClientMessageType messageType) {
+        return new ArrayList<>(observer.getMatchingMessages(message -> message.getMessageType() == messageType
+                && message.getClientId() == CLIENT_ID));
+    }
+
+    private Set<Long> snapshotSessionIds() {
+        return sessionIdsOf(partyService.getParty(PARTY_ID).getSnapshot().getParticipantClientIdsList());
+    }
+
+    private static Set<Long> listedSessionIds(TestClient client) {
+        return client.streamMessages()
+                .filter(message -> message.getMessageType() == ClientMessageType.LIST)
+                .reduce((first, second) -> second)
+                .map(list -> sessionIdsOf(list.getParticipantClientIdsList()))
+                .orElse(Set.of());
+    }
+
+    private static Set<Long> sessionIdsOf(List<ClientSessionIdEntry> entries) {
+        return entries.stream()
+                .filter(entry -> entry.getClientId() == CLIENT_ID)
+                .flatMap(entry -> entry.getSessionIdList().stream())
+                .collect(Collectors.toSet());
+    }
+}
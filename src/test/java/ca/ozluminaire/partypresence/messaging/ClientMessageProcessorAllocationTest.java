@@ -0,0 +1,141 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
+import io.grpc.stub.StreamObserver;
+import io.micronaut.context.ApplicationContext;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static ca.ozluminaire.partypresence.util.ClientMessageUtil.buildAckMessage;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Fails the build if the steady-state PING/ACK dispatch path allocates more than the messages it has to send.
+ * A PING may only allocate the ACK frame sent back for it, measured here on a warm JIT, and an ACK may only allocate
+ * the boxed message ID it looks up in the inflight map.
+ */
+@Slf4j
+class ClientMessageProcessorAllocationTest {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MESSAGES_PER_ROUND = 50_000;
+
+    // a boxed long, for the inflight map lookup of every acked message ID
+    private static final long BOXED_MESSAGE_ID_BYTES = 16;
+    // per-message share of the allocation counter calls and of rounding, far below one extra object per message
+    private static final long MEASUREMENT_SLACK_BYTES = 8;
+
+    private static final Random random = new Random();
+    private static ApplicationContext applicationContext;
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+
+    // keeps the measured ACK frames reachable, so that the JIT cannot optimize their allocation away
+    private static ClientMessage ackFrame;
+
+    @BeforeAll
+    static void setup() {
+        applicationContext = ApplicationContext.run();
+    }
+
+    @AfterAll
+    static void teardown() {
+        applicationContext.close();
+    }
+
+    @Test
+    void pingAndAckDispatchStaysWithinAllocationBudget() {
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported(), "thread allocation counters are not supported");
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        ClientMessageProcessor clientMessageProcessor = applicationContext.getBean(ClientMessageProcessor.class);
+        SessionReference sessionRef = new SessionReference(null);
+        SerializingStreamObserver<ClientMessage> responseObserver = new SerializingStreamObserver<>(new DiscardingStreamObserver());
+
+        clientMessageProcessor.processMessage(sessionRef, responseObserver, ClientMessage.newBuilder()
+                .setMessageType(ClientMessageType.JOIN)
+                .setMessageId(random.nextLong())
+                .setSessionId(random.nextLong())
+                .setClientId(random.nextLong())
+                .setPartyId(random.nextLong())
+                .build());
+
+        long[] messageIds = random.longs(MESSAGES_PER_ROUND).toArray();
+        ClientMessage[] pingMessages = buildMessages(ClientMessageType.PING);
+        ClientMessage[] ackMessages = buildMessages(ClientMessageType.ACK);
+
+        long ackFrameBytes = 0;
+        long bytesPerPing = 0;
+        long bytesPerAck = 0;
+        // only the last round is checked, after the JIT has compiled the dispatch path
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            ackFrameBytes = measureBytesPerMessage(messageIds.length, () -> {
+                for (long messageId : messageIds) {
+                    ackFrame = buildAckMessage(messageId);
+                }
+            });
+            bytesPerPing = measureBytesPerMessage(pingMessages.length, () -> {
+                for (ClientMessage message : pingMessages) {
+                    clientMessageProcessor.processMessage(sessionRef, responseObserver, message);
+                }
+            });
+            bytesPerAck = measureBytesPerMessage(ackMessages.length, () -> {
+                for (ClientMessage message : ackMessages) {
+                    clientMessageProcessor.processMessage(sessionRef, responseObserver, message);
+                }
+            });
+            log.info("Round {} allocated {} bytes per ACK frame, {} bytes per PING, {} bytes per ACK",
+                    round, ackFrameBytes, bytesPerPing, bytesPerAck);
+        }
+
+        assertThat("bytes allocated per dispatched PING", bytesPerPing,
+                lessThanOrEqualTo(ackFrameBytes + MEASUREMENT_SLACK_BYTES));
+        assertThat("bytes allocated per dispatched ACK", bytesPerAck,
+                lessThanOrEqualTo(BOXED_MESSAGE_ID_BYTES + MEASUREMENT_SLACK_BYTES));
+    }
+
+    private long measureBytesPerMessage(int messageCount, Runnable dispatch) {
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        dispatch.run();
+        return (threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore) / messageCount;
+    }
+
+    // messages are built up front so that only the dispatch is measured
+    private static ClientMessage[] buildMessages(ClientMessageType type) {
+        ClientMessage[] messages = new ClientMessage[MESSAGES_PER_ROUND];
+        for (int i = 0; i < messages.length; i++) {
+            ClientMessage.Builder builder = ClientMessage.newBuilder()
+                    .setMessageType(type)
+                    .setMessageId(random.nextLong());
+            if (type == ClientMessageType.ACK) {
+                builder.addAckMessageIds(random.nextLong());
+            }
+            messages[i] = builder.build();
+        }
+        return messages;
+    }
+
+    private static class DiscardingStreamObserver implements StreamObserver<ClientMessage> {
+        @Override
+        public void onNext(ClientMessage value) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+}
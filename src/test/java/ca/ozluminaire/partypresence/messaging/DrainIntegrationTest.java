@@ -0,0 +1,142 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import ca.ozluminaire.partypresence.*;
+import ca.ozluminaire.partypresence.client.TestBroker;
+import ca.ozluminaire.partypresence.client.TestClient;
+import ca.ozluminaire.partypresence.client.TestClientFactory;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static ca.ozluminaire.partypresence.client.TestBroker.waitUntil;
+import static ca.ozluminaire.partypresence.client.TestMessages.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Drains one of two local broker nodes, moves its clients to the other node after their reconnect delays, and checks
+ * that the reconnects are spread over the reconnect window instead of arriving at once. The admin service is only
+ * enabled on the draining node.
+ */
+@Slf4j
+class DrainIntegrationTest {
+
+    private static final int CLIENT_COUNT = 100;
+    private static final int RECONNECT_WINDOW_MILLIS = 4000;
+    private static final int BUCKET_MILLIS = 500;
+    private static final long PARTY_ID = 777L;
+
+    private TestBroker drainingServer;
+    private TestBroker remainingServer;
+
+    @BeforeEach
+    void setup() {
+        drainingServer = TestBroker.start(Map.of(
+                "party-presence-message-broker.admin.enabled", true,
+                "party-presence-message-broker.drain.check-interval", "200ms"));
+        remainingServer = TestBroker.start();
+    }
+
+    @AfterEach
+    void teardown() {
+        drainingServer.stop();
+        remainingServer.stop();
+    }
+
+    @Test
+    void drainSpreadsReconnectsOverTheWindow() {
+        TestClientFactory drainingNodeClients = drainingServer.getClientFactory();
+        TestClientFactory remainingNodeClients = remainingServer.getClientFactory();
+
+        Map<Long, Long> sessionIds = new HashMap<>();
+        LongStream.rangeClosed(1, CLIENT_COUNT).boxed().forEach(id -> {
+            sessionIds.put(id, randomId());
+            drainingNodeClients.create(id).sendMessage(joinMessage(id, PARTY_ID, sessionIds.get(id)));
+        });
+        waitUntil(() -> drainingNodeClients.getAll().stream().allMatch(client -> client.getClientSetSize() == CLIENT_COUNT));
+
+        ManagedChannel adminChannel = ManagedChannelBuilder
+                .forTarget(drainingServer.getTarget()).usePlaintext().build();
+        DrainResponse drainResponse = BrokerAdminGrpc.newBlockingStub(adminChannel)
+                .drain(DrainRequest.newBuilder().setReconnectWindowMillis(RECONNECT_WINDOW_MILLIS).build());
+        adminChannel.shutdown();
+        assertThat("every stream was drained", drainResponse.getDrainedStreams(), is(CLIENT_COUNT));
+
+        waitUntil(() -> drainingNodeClients.getAll().stream().allMatch(client ->
+                !client.getMatchingMessages(message -> message.getMessageType() == ClientMessageType.DRAIN).isEmpty()));
+
+        // the draining node does not accept new sessions
+        TestClient lateClient = drainingNodeClients.create(CLIENT_COUNT + 1L);
+        lateClient.sendMessage(joinMessage(lateClient.getId(), PARTY_ID, randomId()));
+        waitUntil(lateClient::isCompleted);
+        assertAll("a client joining the draining node",
+                () -> assertThat("got an error message",
+                        lateClient.getReceivedMessages().get(0).getMessageType(), is(ClientMessageType.ERROR)),
+                () -> assertThat("with the draining status code",
+                        lateClient.getReceivedMessages().get(0).getStatusCode(), is(StatusCode.DRAINING)));
+        drainingNodeClients.remove(lateClient.getId());
+
+        // each client moves to the remaining node after its reconnect delay
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(4);
+        Map<Long, Long> reconnectDelays = new ConcurrentHashMap<>();
+        Map<Long, Long> reconnectTimes = new ConcurrentHashMap<>();
+        final long drainedAt = System.currentTimeMillis();
+        for (TestClient client : drainingNodeClients.getAll()) {
+            ClientMessage drainMessage = client.getMatchingMessages(message -> message.getMessageType() == ClientMessageType.DRAIN)
+                    .iterator().next();
+            reconnectDelays.put(client.getId(), (long) drainMessage.getReconnectDelayMillis());
+            executor.schedule(() -> {
+                client.closeStream();
+                reconnectTimes.put(client.getId(), System.currentTimeMillis() - drainedAt);
+                remainingNodeClients.create(client.getId()).sendMessage(joinMessage(client.getId(), PARTY_ID, sessionIds.get(client.getId())));
+            }, drainMessage.getReconnectDelayMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        waitUntil(() -> remainingNodeClients.getTotalSize() == CLIENT_COUNT && remainingNodeClients.getAll().stream()
+                .allMatch(client -> client.getClientSetSize() == CLIENT_COUNT));
+        executor.shutdown();
+
+        log.info("Reconnects per {} ms: {}", BUCKET_MILLIS, countPerBucket(reconnectTimes.values()));
+        assertAll("reconnect load",
+                () -> assertThat("delays are within the window",
+                        reconnectDelays.values(), everyItem(both(greaterThanOrEqualTo(0L)).and(lessThan((long) RECONNECT_WINDOW_MILLIS)))),
+                () -> assertThat("delays span most of the window",
+                        Collections.max(reconnectDelays.values()) - Collections.min(reconnectDelays.values()),
+                        greaterThanOrEqualTo(RECONNECT_WINDOW_MILLIS / 2L)),
+                () -> assertThat("no interval gets a burst of reconnects",
+                        Collections.max(countPerBucket(reconnectTimes.values()).values()), lessThanOrEqualTo(CLIENT_COUNT / 4L)));
+
+        // the drained node shuts itself down once all of its streams are closed
+        waitUntil(() -> !drainingServer.isRunning());
+
+        remainingNodeClients.forAll(client -> client.sendMessage(leaveMessage()));
+    }
+
+    @Test
+    void adminServiceIsOnlyServedWhenEnabled() {
+        ManagedChannel adminChannel = ManagedChannelBuilder
+                .forTarget(remainingServer.getTarget()).usePlaintext().build();
+        StatusRuntimeException exception = assertThrows(StatusRuntimeException.class, () ->
+                BrokerAdminGrpc.newBlockingStub(adminChannel).drain(DrainRequest.getDefaultInstance()));
+        adminChannel.shutdown();
+
+        assertThat(exception.getStatus().getCode(), is(Status.Code.UNIMPLEMENTED));
+        assertThat(remainingServer.getBean(DrainService.class).isDraining(), is(false));
+    }
+
+    private static Map<Long, Long> countPerBucket(Collection<Long> times) {
+        return times.stream().collect(Collectors.groupingBy(time -> time / BUCKET_MILLIS, TreeMap::new, Collectors.counting()));
+    }
+}
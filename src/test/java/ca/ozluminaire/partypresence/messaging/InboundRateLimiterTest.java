@@ -0,0 +1,113 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
+import ca.ozluminaire.partypresence.messaging.InboundRateLimiter.Admission;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Checks how throttled streams escalate from THROTTLE to DROP to DISCONNECT, how the client limit is shared between
+ * streams, that ACK and PING messages are not limited, and that violations are reset and idle client limiters are
+ * evicted.
+ */
+class InboundRateLimiterTest {
+
+    private static final ClientMessage INTEREST = ClientMessage.newBuilder().setMessageType(ClientMessageType.INTEREST).build();
+    private static final ClientMessage PING = ClientMessage.newBuilder().setMessageType(ClientMessageType.PING).build();
+    private static final ClientMessage ACK = ClientMessage.newBuilder().setMessageType(ClientMessageType.ACK).build();
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void escalatesFromThrottleToDisconnect() {
+        InboundRateLimiter rateLimiter = new InboundRateLimiter(1, 2, 0, 0, 3, Duration.ofHours(1), meterRegistry);
+        SessionReference sessionRef = new SessionReference(rateLimiter.newSessionRateLimiter());
+
+        assertThat(rateLimiter.admit(sessionRef, INTEREST), is(Admission.ADMIT));
+        assertThat(rateLimiter.admit(sessionRef, INTEREST), is(Admission.ADMIT));
+        assertThat("the first message over the limit is answered", rateLimiter.admit(sessionRef, INTEREST), is(Admission.THROTTLE));
+        assertThat("later messages are dropped silently", rateLimiter.admit(sessionRef, INTEREST), is(Admission.DROP));
+        assertThat("the stream is disconnected at max violations", rateLimiter.admit(sessionRef, INTEREST), is(Admission.DISCONNECT));
+        assertThat("messages after the disconnect are dropped", rateLimiter.admit(sessionRef, INTEREST), is(Admission.DROP));
+
+        assertThat(meterRegistry.counter("broker.inbound.throttled", "scope", "session").count(), is(3.0));
+        assertThat(meterRegistry.counter("broker.inbound.throttle.disconnects").count(), is(1.0));
+    }
+
+    @Test
+    void acksAndPingsAreNotLimited() {
+        InboundRateLimiter rateLimiter = new InboundRateLimiter(1, 1, 1, 1, 3, Duration.ofHours(1), meterRegistry);
+        SessionReference sessionRef = new SessionReference(rateLimiter.newSessionRateLimiter());
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(rateLimiter.admit(sessionRef, ACK), is(Admission.ADMIT));
+            assertThat(rateLimiter.admit(sessionRef, PING), is(Admission.ADMIT));
+        }
+        assertThat("the stream bucket is left for other messages", rateLimiter.admit(sessionRef, INTEREST), is(Admission.ADMIT));
+        assertThat(rateLimiter.admit(sessionRef, INTEREST), is(Admission.THROTTLE));
+        assertThat("a throttled stream still acks and pings", rateLimiter.admit(sessionRef, ACK), is(Admission.ADMIT));
+        assertThat(sessionRef.getViolations(), is(1));
+    }
+
+    @Test
+    void clientLimitIsSharedByStreams() {
+        InboundRateLimiter rateLimiter = new InboundRateLimiter(0, 0, 1, 2, 10, Duration.ofHours(1), meterRegistry);
+        SessionReference firstStream = new SessionReference(rateLimiter.newSessionRateLimiter());
+        SessionReference secondStream = new SessionReference(rateLimiter.newSessionRateLimiter());
+
+        assertThat(rateLimiter.admit(firstStream, joinMessage(7L)), is(Admission.ADMIT));
+        assertThat(rateLimiter.admit(secondStream, joinMessage(7L)), is(Admission.ADMIT));
+        assertThat("the client burst is used up by both streams",
+                rateLimiter.admit(firstStream, joinMessage(7L)), is(Admission.THROTTLE));
+        assertThat("other clients have their own limit", rateLimiter.admit(secondStream, joinMessage(8L)), is(Admission.ADMIT));
+        assertThat(meterRegistry.counter("broker.inbound.throttled", "scope", "client").count(), is(1.0));
+
+        rateLimiter.evictIdleClientRateLimiters();
+        assertThat("limiters in use are kept", rateLimiter.getClientRateLimiterCount(), is(2));
+    }
+
+    @Test
+    void evictsRefilledClientRateLimiters() {
+        InboundRateLimiter rateLimiter = new InboundRateLimiter(0, 0, 20, 1, 10, Duration.ofHours(1), meterRegistry);
+        SessionReference sessionRef = new SessionReference(rateLimiter.newSessionRateLimiter());
+
+        assertThat(rateLimiter.admit(sessionRef, joinMessage(7L)), is(Admission.ADMIT));
+        assertThat(rateLimiter.getClientRateLimiterCount(), is(1));
+
+        await().atMost(5, TimeUnit.SECONDS).pollInterval(10, TimeUnit.MILLISECONDS).until(() -> {
+            rateLimiter.evictIdleClientRateLimiters();
+            return rateLimiter.getClientRateLimiterCount() == 0;
+        });
+    }
+
+    @Test
+    void violationsAreResetAfterACleanInterval() throws InterruptedException {
+        InboundRateLimiter rateLimiter = new InboundRateLimiter(2, 1, 0, 0, 3, Duration.ofMillis(100), meterRegistry);
+        SessionReference sessionRef = new SessionReference(rateLimiter.newSessionRateLimiter());
+
+        assertThat(rateLimiter.admit(sessionRef, INTEREST), is(Admission.ADMIT));
+        assertThat(rateLimiter.admit(sessionRef, INTEREST), is(Admission.THROTTLE));
+        assertThat(rateLimiter.admit(sessionRef, INTEREST), is(Admission.DROP));
+
+        Thread.sleep(600);
+        assertThat(rateLimiter.admit(sessionRef, INTEREST), is(Admission.ADMIT));
+        assertThat("violations are reset", sessionRef.getViolations(), is(0));
+
+        // without the reset, the next violation would disconnect the stream
+        assertThat(rateLimiter.admit(sessionRef, INTEREST), is(Admission.THROTTLE));
+        assertThat(rateLimiter.admit(sessionRef, INTEREST), is(Admission.DROP));
+    }
+
+    private static ClientMessage joinMessage(long clientId) {
+        return ClientMessage.newBuilder().setClientId(clientId).setMessageType(ClientMessageType.JOIN).build();
+    }
+}
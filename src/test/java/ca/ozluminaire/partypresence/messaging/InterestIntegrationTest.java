@@ -0,0 +1,98 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
+import ca.ozluminaire.partypresence.ClientSessionIdEntry;
+import ca.ozluminaire.partypresence.client.TestBroker;
+import ca.ozluminaire.partypresence.client.TestClient;
+import ca.ozluminaire.partypresence.client.TestClientFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static ca.ozluminaire.partypresence.client.TestBroker.waitUntil;
+import static ca.ozluminaire.partypresence.client.TestMessages.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Joins a session with an interest set to a party and checks that its LIST and presence messages are filtered by it,
+ * then widens and narrows the interest set with INTEREST messages.
+ */
+@Slf4j
+class InterestIntegrationTest {
+
+    private static final long PARTY_ID = 4242L;
+
+    private TestBroker broker;
+    private TestClientFactory testClientFactory;
+
+    @BeforeEach
+    void setup() {
+        broker = TestBroker.start();
+        testClientFactory = broker.getClientFactory();
+    }
+
+    @AfterEach
+    void teardown() {
+        broker.stop();
+    }
+
+    @Test
+    void interestSetFiltersPresenceMessages() {
+        LongStream.rangeClosed(1, 4).forEach(id -> testClientFactory.create(id).sendMessage(joinMessage(id, PARTY_ID, randomId())));
+        waitUntil(() -> testClientFactory.getAll().stream().allMatch(client -> client.getClientSetSize() == 4));
+
+        TestClient follower = testClientFactory.create(5L);
+        follower.sendMessage(joinMessage(5L, PARTY_ID, randomId(), List.of(1L, 2L)));
+        waitUntil(() -> listMessages(follower).size() == 1);
+        assertThat("the first LIST only has the followed clients",
+                participantIds(listMessages(follower).get(0)), is(Set.of(1L, 2L)));
+
+        // an unfollowed client joins, then a followed client leaves
+        TestClient bystander = testClientFactory.get(2L);
+        testClientFactory.create(6L).sendMessage(joinMessage(6L, PARTY_ID, randomId()));
+        waitUntil(() -> bystander.getClientSet().contains(6L));
+        testClientFactory.get(1L).sendMessage(leaveMessage());
+        waitUntil(() -> !presenceMessages(follower, ClientMessageType.LEAVE, 1L).isEmpty());
+        assertThat("the JOIN of an unfollowed client is filtered out",
+                follower.getMatchingMessages(message -> message.getMessageType() == ClientMessageType.JOIN), is(empty()));
+
+        // an empty interest set widens the session to every client in the party
+        follower.sendMessage(interestMessage(PARTY_ID, List.of()));
+        waitUntil(() -> listMessages(follower).size() == 2);
+        assertThat("the widened LIST has every client",
+                participantIds(listMessages(follower).get(1)), is(Set.of(2L, 3L, 4L, 5L, 6L)));
+
+        // narrowing the interest set sends a LIST with only the followed client
+        follower.sendMessage(interestMessage(PARTY_ID, List.of(3L)));
+        waitUntil(() -> listMessages(follower).size() == 3);
+        assertThat("the narrowed LIST only has the followed client",
+                participantIds(listMessages(follower).get(2)), is(Set.of(3L)));
+
+        testClientFactory.get(4L).sendMessage(leaveMessage());
+        waitUntil(() -> !bystander.getClientSet().contains(4L));
+        testClientFactory.get(3L).sendMessage(leaveMessage());
+        waitUntil(() -> !presenceMessages(follower, ClientMessageType.LEAVE, 3L).isEmpty());
+        assertThat("the LEAVE of a client dropped from the interest set is filtered out",
+                presenceMessages(follower, ClientMessageType.LEAVE, 4L), is(empty()));
+    }
+
+    private static List<ClientMessage> listMessages(TestClient client) {
+        return new ArrayList<>(client.getMatchingMessages(message -> message.getMessageType() == ClientMessageType.LIST));
+    }
+
+    private static Collection<ClientMessage> presenceMessages(TestClient client, ClientMessageType type, long clientId) {
+        return client.getMatchingMessages(message -> message.getMessageType() == type && message.getClientId() == clientId);
+    }
+
+    private static Set<Long> participantIds(ClientMessage listMessage) {
+        return listMessage.getParticipantClientIdsList().stream()
+                .map(ClientSessionIdEntry::getClientId).collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,109 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
+import ca.ozluminaire.partypresence.client.TestBroker;
+import ca.ozluminaire.partypresence.client.TestClient;
+import ca.ozluminaire.partypresence.client.TestClientFactory;
+import ca.ozluminaire.partypresence.service.SessionService;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static ca.ozluminaire.partypresence.client.TestBroker.waitUntil;
+import static ca.ozluminaire.partypresence.client.TestMessages.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Multiplexes two parties over one stream, and checks that sessions leaving the stream, by LEAVE, by timeout or by
+ * being resumed on another stream, do not close it or take the ACKs of the remaining session with them.
+ */
+@Slf4j
+class MultiplexingIntegrationTest {
+
+    private static final long CLIENT_ID = 1L;
+    private static final long FIRST_PARTY_ID = 2001L;
+    private static final long SECOND_PARTY_ID = 2002L;
+
+    private TestBroker broker;
+    private SessionService sessionService;
+
+    @BeforeEach
+    void setup() {
+        broker = TestBroker.start(Map.of("party-presence-message-broker.keepalive-timeout", 2));
+        sessionService = broker.getBean(SessionService.class);
+    }
+
+    @AfterEach
+    void teardown() {
+        broker.stop();
+    }
+
+    @Test
+    void leavingOnePartyKeepsTheStream() {
+        final long firstSessionId = randomId();
+        final long secondSessionId = randomId();
+        TestClient client = broker.getClientFactory().create(CLIENT_ID);
+        client.sendMessage(joinMessage(CLIENT_ID, FIRST_PARTY_ID, firstSessionId));
+        client.sendMessage(joinMessage(CLIENT_ID, SECOND_PARTY_ID, secondSessionId));
+        waitUntil(() -> sessionService.hasSession(firstSessionId) && sessionService.hasSession(secondSessionId));
+
+        ClientMessage firstLeave = leaveMessage(FIRST_PARTY_ID);
+        client.sendMessage(firstLeave);
+        waitUntil(() -> client.isAcked(firstLeave) && !sessionService.hasSession(firstSessionId));
+        assertThat("the stream stays open for the other party", client.isCompleted(), is(false));
+
+        ClientMessage ping = pingMessage();
+        client.sendMessage(ping);
+        waitUntil(() -> client.isAcked(ping));
+
+        client.sendMessage(leaveMessage(SECOND_PARTY_ID));
+        waitUntil(client::isCompleted);
+        assertThat(sessionService.hasSession(secondSessionId), is(false));
+    }
+
+    @Test
+    void sessionResumedOnAnotherStreamLeavesTheFirstOne() throws InterruptedException {
+        final long firstSessionId = randomId();
+        final long secondSessionId = randomId();
+        TestClient firstStream = broker.getClientFactory().create(CLIENT_ID);
+        firstStream.sendMessage(joinMessage(CLIENT_ID, FIRST_PARTY_ID, firstSessionId));
+        firstStream.sendMessage(joinMessage(CLIENT_ID, SECOND_PARTY_ID, secondSessionId));
+        waitUntil(() -> sessionService.hasSession(firstSessionId) && sessionService.hasSession(secondSessionId));
+
+        // the session joined first moves to a second stream, which then goes quiet. The stream is opened by another
+        // factory, since a factory keeps one stream per client ID
+        TestClient secondStream = new TestClientFactory(broker.getTarget()).create(CLIENT_ID);
+        ClientMessage resume = joinMessage(CLIENT_ID, FIRST_PARTY_ID, firstSessionId);
+        secondStream.sendMessage(resume);
+        waitUntil(() -> secondStream.isAcked(resume));
+
+        // PINGs on the first stream are acked on it, and keep only its remaining session alive
+        long keepaliveUntil = System.currentTimeMillis() + 5_000;
+        while (System.currentTimeMillis() < keepaliveUntil) {
+            ClientMessage ping = pingMessage();
+            firstStream.sendMessage(ping);
+            waitUntil(() -> firstStream.isAcked(ping));
+            Thread.sleep(500);
+        }
+        assertThat("the second stream got no ACKs for the first one",
+                secondStream.getMatchingMessages(message -> message.getMessageType() == ClientMessageType.ACK), hasSize(1));
+
+        waitUntil(secondStream::isCompleted);
+        assertThat("the resumed session expired", sessionService.hasSession(firstSessionId), is(false));
+        assertThat("the session on the first stream is alive", sessionService.hasSession(secondSessionId), is(true));
+        assertThat("the first stream stays open", firstStream.isCompleted(), is(false));
+
+        ClientMessage ping = pingMessage();
+        firstStream.sendMessage(ping);
+        waitUntil(() -> firstStream.isAcked(ping));
+
+        // once the last session on the first stream expires, the stream is closed with it
+        waitUntil(firstStream::isCompleted);
+        assertThat(sessionService.hasSession(secondSessionId), is(false));
+    }
+}
@@ -0,0 +1,87 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import ca.ozluminaire.partypresence.ClientMessageType;
+import ca.ozluminaire.partypresence.StatusCode;
+import ca.ozluminaire.partypresence.client.TestBroker;
+import ca.ozluminaire.partypresence.client.TestClient;
+import ca.ozluminaire.partypresence.client.TestClientFactory;
+import ca.ozluminaire.partypresence.model.SessionState;
+import ca.ozluminaire.partypresence.service.OutboundMemoryBudget;
+import ca.ozluminaire.partypresence.service.SessionService;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static ca.ozluminaire.partypresence.client.TestBroker.waitUntil;
+import static ca.ozluminaire.partypresence.client.TestMessages.*;
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Multiplexes two parties over the stream of a client that never acks, grows its backlog over the high watermark with
+ * other clients joining and leaving, and checks that shedding closes the whole stream: both sessions are unbound right
+ * away, the budget use goes back down, and both sessions expire after the keepalive timeout.
+ */
+@Slf4j
+class OutboundSheddingIntegrationTest {
+
+    private static final long FIRST_PARTY_ID = 1001L;
+    private static final long SECOND_PARTY_ID = 1002L;
+    private static final long SLOW_CLIENT_ID = 1L;
+    private static final int MAX_CHURN_CYCLES = 500;
+
+    private TestBroker broker;
+
+    @AfterEach
+    void teardown() {
+        broker.stop();
+    }
+
+    @Test
+    void sheddingClosesEverySessionOnTheStream() {
+        broker = TestBroker.start(Map.of(
+                "party-presence-message-broker.keepalive-timeout", 5,
+                "party-presence-message-broker.outbound-budget.limit-bytes", 4096,
+                "party-presence-message-broker.outbound-budget.check-interval", "50ms"));
+        TestClientFactory testClientFactory = broker.getClientFactory();
+        OutboundMemoryBudget outboundMemoryBudget = broker.getBean(OutboundMemoryBudget.class);
+        SessionService sessionService = broker.getBean(SessionService.class);
+
+        final long firstSessionId = randomId();
+        final long secondSessionId = randomId();
+        TestClient slowClient = testClientFactory.create(SLOW_CLIENT_ID);
+        slowClient.sendMessage(joinMessage(SLOW_CLIENT_ID, FIRST_PARTY_ID, firstSessionId));
+        slowClient.sendMessage(joinMessage(SLOW_CLIENT_ID, SECOND_PARTY_ID, secondSessionId));
+        waitUntil(() -> slowClient.getMatchingMessages(message -> message.getMessageType() == ClientMessageType.LIST).size() == 2);
+
+        // every other client joining and leaving both parties adds four unacked presence messages to the slow client
+        for (long clientId = 100; clientId < 100 + MAX_CHURN_CYCLES && !slowClient.isCompleted(); clientId++) {
+            TestClient churnClient = testClientFactory.create(clientId);
+            churnClient.sendMessage(joinMessage(clientId, FIRST_PARTY_ID, randomId()));
+            churnClient.sendMessage(joinMessage(clientId, SECOND_PARTY_ID, randomId()));
+            churnClient.sendMessage(leaveMessage(FIRST_PARTY_ID));
+            churnClient.sendMessage(leaveMessage(SECOND_PARTY_ID));
+            waitUntil(churnClient::isCompleted);
+        }
+        waitUntil(slowClient::isCompleted);
+
+        assertThat("the slow client was told it is overloaded",
+                slowClient.getMatchingMessages(message -> message.getMessageType() == ClientMessageType.ERROR
+                        && message.getStatusCode() == StatusCode.OVERLOADED), hasSize(1));
+
+        // both sessions are unbound with the stream, long before the keepalive timeout
+        await().atMost(1, TimeUnit.SECONDS).pollInterval(20, TimeUnit.MILLISECONDS).until(() ->
+                sessionService.getSession(firstSessionId).getSessionState() == SessionState.INACTIVE
+                        && sessionService.getSession(secondSessionId).getSessionState() == SessionState.INACTIVE);
+        await().atMost(1, TimeUnit.SECONDS).pollInterval(20, TimeUnit.MILLISECONDS).until(() ->
+                outboundMemoryBudget.getUsedBytes() == 0);
+
+        // and expire once nobody resumes them
+        waitUntil(() -> !sessionService.hasSession(firstSessionId) && !sessionService.hasSession(secondSessionId));
+        assertThat(outboundMemoryBudget.getUsedBytes(), is(0L));
+    }
+}
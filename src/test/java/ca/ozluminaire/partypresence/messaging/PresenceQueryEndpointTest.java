@@ -0,0 +1,130 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import ca.ozluminaire.partypresence.*;
+import ca.ozluminaire.partypresence.client.TestBroker;
+import ca.ozluminaire.partypresence.client.TestClientFactory;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static ca.ozluminaire.partypresence.client.TestBroker.waitUntil;
+import static ca.ozluminaire.partypresence.client.TestMessages.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertAll;
+
+/**
+ * Queries the presence of a running party while clients join and leave it, and checks that the snapshots follow the
+ * membership, including clients multiplexing two parties over one stream.
+ */
+class PresenceQueryEndpointTest {
+
+    private static final long PARTY_ID = 501L;
+    private static final long OTHER_PARTY_ID = 502L;
+    private static final long UNKNOWN_ID = 987654321L;
+
+    private TestBroker broker;
+    private ManagedChannel channel;
+    private PresenceQueryGrpc.PresenceQueryBlockingStub presenceQuery;
+    private TestClientFactory testClientFactory;
+    private final Map<Long, Long> sessionIds = new HashMap<>();
+
+    @BeforeEach
+    void setup() {
+        broker = TestBroker.start();
+        channel = ManagedChannelBuilder.forTarget(broker.getTarget()).usePlaintext().build();
+        presenceQuery = PresenceQueryGrpc.newBlockingStub(channel);
+        testClientFactory = broker.getClientFactory();
+    }
+
+    @AfterEach
+    void teardown() {
+        channel.shutdown();
+        broker.stop();
+    }
+
+    @Test
+    void partyPresenceFollowsTheMembership() {
+        for (long clientId = 1; clientId <= 3; clientId++) {
+            join(clientId, PARTY_ID);
+        }
+        waitUntil(() -> participants(partyPresence(PARTY_ID)).keySet().equals(Set.of(1L, 2L, 3L)));
+        PartyPresence initial = partyPresence(PARTY_ID);
+        assertAll("snapshot after three joins",
+                () -> assertThat(initial.getPartyId(), is(PARTY_ID)),
+                () -> assertThat(initial.getVersion(), is(3L)),
+                () -> assertThat(participants(initial), is(Map.of(
+                        1L, List.of(sessionIds.get(1L)), 2L, List.of(sessionIds.get(2L)), 3L, List.of(sessionIds.get(3L))))));
+
+        // a client in the middle of the snapshot leaves, then another one joins
+        testClientFactory.get(2L).sendMessage(leaveMessage(PARTY_ID));
+        waitUntil(() -> partyPresence(PARTY_ID).getVersion() == 4L);
+        assertThat(participants(partyPresence(PARTY_ID)).keySet(), is(Set.of(1L, 3L)));
+
+        join(4L, PARTY_ID);
+        waitUntil(() -> partyPresence(PARTY_ID).getVersion() == 5L);
+        assertThat(participants(partyPresence(PARTY_ID)), is(Map.of(
+                1L, List.of(sessionIds.get(1L)), 3L, List.of(sessionIds.get(3L)), 4L, List.of(sessionIds.get(4L)))));
+
+        testClientFactory.get(1L).sendMessage(leaveMessage(PARTY_ID));
+        testClientFactory.get(4L).sendMessage(leaveMessage(PARTY_ID));
+        testClientFactory.get(3L).sendMessage(leaveMessage(PARTY_ID));
+        waitUntil(() -> partyPresence(PARTY_ID).getVersion() == 8L);
+        assertThat("an empty party has no participants", partyPresence(PARTY_ID).getParticipantClientIdsCount(), is(0));
+    }
+
+    @Test
+    void partyAndClientPresencesCoverMultiplexedStreams() {
+        join(1L, PARTY_ID);
+        join(2L, PARTY_ID);
+        // client 1 multiplexes a second party over its stream
+        long otherSessionId = randomId();
+        testClientFactory.get(1L).sendMessage(joinMessage(1L, OTHER_PARTY_ID, otherSessionId));
+        waitUntil(() -> partyPresence(OTHER_PARTY_ID).getParticipantClientIdsCount() == 1
+                && partyPresence(PARTY_ID).getParticipantClientIdsCount() == 2);
+
+        MultiPartyPresenceResponse parties = presenceQuery.getPartyPresences(MultiPartyPresenceRequest.newBuilder()
+                .addPartyIds(OTHER_PARTY_ID).addPartyIds(UNKNOWN_ID).addPartyIds(PARTY_ID).build());
+        assertAll("party presences",
+                () -> assertThat("one entry per requested party, in request order",
+                        parties.getPartiesList().stream().map(PartyPresence::getPartyId).collect(Collectors.toList()),
+                        is(List.of(OTHER_PARTY_ID, UNKNOWN_ID, PARTY_ID))),
+                () -> assertThat(participants(parties.getParties(0)), is(Map.of(1L, List.of(otherSessionId)))),
+                () -> assertThat("an unknown party is empty", parties.getParties(1).getParticipantClientIdsCount(), is(0)),
+                () -> assertThat("an unknown party has no version", parties.getParties(1).getVersion(), is(0L)),
+                () -> assertThat(participants(parties.getParties(2)).keySet(), is(Set.of(1L, 2L))));
+
+        testClientFactory.get(2L).sendMessage(leaveMessage(PARTY_ID));
+        waitUntil(() -> partyPresence(PARTY_ID).getParticipantClientIdsCount() == 1);
+
+        ClientPresenceResponse clients = presenceQuery.getClientPresences(ClientPresenceRequest.newBuilder()
+                .addClientIds(1L).addClientIds(2L).addClientIds(UNKNOWN_ID).build());
+        assertAll("client presences",
+                () -> assertThat(clients.getClientsCount(), is(3)),
+                () -> assertThat(clients.getClients(0).getClientId(), is(1L)),
+                () -> assertThat(clients.getClients(0).getOnline(), is(true)),
+                () -> assertThat(clients.getClients(0).getPartyIdsList(), containsInAnyOrder(PARTY_ID, OTHER_PARTY_ID)),
+                () -> assertThat("a client that left is offline", clients.getClients(1).getOnline(), is(false)),
+                () -> assertThat(clients.getClients(1).getPartyIdsList(), is(empty())),
+                () -> assertThat("an unknown client is offline", clients.getClients(2).getOnline(), is(false)));
+    }
+
+    private void join(long clientId, long partyId) {
+        sessionIds.put(clientId, randomId());
+        testClientFactory.create(clientId).sendMessage(joinMessage(clientId, partyId, sessionIds.get(clientId)));
+    }
+
+    private PartyPresence partyPresence(long partyId) {
+        return presenceQuery.getPartyPresence(PartyPresenceRequest.newBuilder().setPartyId(partyId).build());
+    }
+
+    private static Map<Long, List<Long>> participants(PartyPresence partyPresence) {
+        return partyPresence.getParticipantClientIdsList().stream()
+                .collect(Collectors.toMap(ClientSessionIdEntry::getClientId, ClientSessionIdEntry::getSessionIdList));
+    }
+}
@@ -0,0 +1,87 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that only the messages matching the compression predicate are sent with message compression on, and that
+ * compression is left off when it can no longer be enabled.
+ */
+class SerializingStreamObserverTest {
+
+    private static final ClientMessage LIST = ClientMessage.newBuilder().setMessageType(ClientMessageType.LIST).build();
+    private static final ClientMessage JOIN = ClientMessage.newBuilder().setMessageType(ClientMessageType.JOIN).build();
+
+    private ServerCallStreamObserver<ClientMessage> delegate;
+    private SerializingStreamObserver<ClientMessage> responseObserver;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setup() {
+        delegate = mock(ServerCallStreamObserver.class);
+        responseObserver = new SerializingStreamObserver<>(delegate);
+    }
+
+    @Test
+    void compressesOnlyMatchingMessages() {
+        responseObserver.compressMessages(message -> message.getMessageType() == ClientMessageType.LIST);
+        responseObserver.onNext(JOIN);
+        responseObserver.onNext(LIST);
+        responseObserver.onNext(JOIN);
+
+        InOrder inOrder = inOrder(delegate);
+        // gzip is negotiated for the stream, but off for every message by default
+        inOrder.verify(delegate).setCompression("gzip");
+        inOrder.verify(delegate).setMessageCompression(false);
+        inOrder.verify(delegate).onNext(JOIN);
+        inOrder.verify(delegate).setMessageCompression(true);
+        inOrder.verify(delegate).onNext(LIST);
+        inOrder.verify(delegate).setMessageCompression(false);
+        inOrder.verify(delegate).onNext(JOIN);
+        inOrder.verifyNoMoreInteractions();
+    }
+
+    @Test
+    void compressionIsOnlySetUpOnce() {
+        responseObserver.compressMessages(message -> message.getMessageType() == ClientMessageType.LIST);
+        responseObserver.compressMessages(message -> true);
+        responseObserver.onNext(JOIN);
+
+        verify(delegate, times(1)).setCompression(anyString());
+        verify(delegate, times(1)).setMessageCompression(anyBoolean());
+        verify(delegate).onNext(JOIN);
+    }
+
+    @Test
+    void leavesCompressionOffOnceHeadersAreSent() {
+        doThrow(new IllegalStateException("headers already sent")).when(delegate).setCompression("gzip");
+
+        responseObserver.compressMessages(message -> true);
+        responseObserver.onNext(LIST);
+
+        verify(delegate, never()).setMessageCompression(anyBoolean());
+        verify(delegate).onNext(LIST);
+    }
+
+    @Test
+    void ignoresCompressionWithoutAServerCall() {
+        @SuppressWarnings("unchecked")
+        StreamObserver<ClientMessage> plainDelegate = mock(StreamObserver.class);
+        SerializingStreamObserver<ClientMessage> plainObserver = new SerializingStreamObserver<>(plainDelegate);
+
+        plainObserver.compressMessages(message -> true);
+        plainObserver.onNext(LIST);
+
+        verify(plainDelegate).onNext(LIST);
+        verifyNoMoreInteractions(plainDelegate);
+    }
+}
@@ -0,0 +1,162 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
+import ca.ozluminaire.partypresence.StatusCode;
+import ca.ozluminaire.partypresence.client.TestBroker;
+import ca.ozluminaire.partypresence.client.TestClient;
+import ca.ozluminaire.partypresence.client.TestClientFactory;
+import ca.ozluminaire.partypresence.service.SessionService;
+import ca.ozluminaire.partypresence.service.ShardService;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static ca.ozluminaire.partypresence.client.TestBroker.waitUntil;
+import static ca.ozluminaire.partypresence.client.TestMessages.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Runs the broker with sharding enabled and one party on each shard, and checks JOIN, LEAVE and timeouts in every
+ * party, and a stream multiplexing all the parties, whose messages have to stay in order although the parties are
+ * changed on different shards.
+ */
+@Slf4j
+class ShardingIntegrationTest {
+
+    private static final int SHARD_COUNT = 4;
+    private static final int KEEPALIVE_TIMEOUT_SECONDS = 3;
+    private static final long MULTIPLEXING_CLIENT_ID = 100L;
+
+    private TestBroker broker;
+    private SessionService sessionService;
+    private TestClientFactory testClientFactory;
+    private ScheduledExecutorService pinger;
+
+    // one party ID on each shard
+    private long[] partyIds;
+
+    @BeforeEach
+    void setup() {
+        broker = TestBroker.start(Map.of(
+                "party-presence-message-broker.keepalive-timeout", KEEPALIVE_TIMEOUT_SECONDS,
+                "party-presence-message-broker.sharding.enabled", true,
+                "party-presence-message-broker.sharding.shard-count", SHARD_COUNT));
+        sessionService = broker.getBean(SessionService.class);
+        testClientFactory = broker.getClientFactory();
+        pinger = Executors.newSingleThreadScheduledExecutor();
+
+        ShardService shardService = broker.getBean(ShardService.class);
+        partyIds = new long[SHARD_COUNT];
+        Set<Integer> usedShards = new HashSet<>();
+        for (long partyId = 5000; usedShards.size() < SHARD_COUNT; partyId++) {
+            int shard = shardService.shardOf(partyId);
+            if (usedShards.add(shard)) {
+                partyIds[usedShards.size() - 1] = partyId;
+            }
+        }
+    }
+
+    @AfterEach
+    void teardown() {
+        pinger.shutdownNow();
+        broker.stop();
+    }
+
+    @Test
+    void joinLeaveAndTimeoutOnEveryShard() {
+        // every party has a client that leaves, a client that disconnects, and a client that stays
+        List<TestClient> leavingClients = new ArrayList<>();
+        List<TestClient> disconnectingClients = new ArrayList<>();
+        List<TestClient> observers = new ArrayList<>();
+        List<Long> disconnectedSessionIds = new ArrayList<>();
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            long disconnectedSessionId = randomId();
+            disconnectedSessionIds.add(disconnectedSessionId);
+            leavingClients.add(join(10L * i + 1, partyIds[i], randomId()));
+            disconnectingClients.add(join(10L * i + 2, partyIds[i], disconnectedSessionId));
+            observers.add(join(10L * i + 3, partyIds[i], randomId()));
+        }
+        waitUntil(() -> testClientFactory.getAll().stream().allMatch(client -> client.getClientSetSize() == 3));
+        keepAlive(observers);
+
+        leavingClients.forEach(client -> client.sendMessage(leaveMessage(0)));
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            final TestClient leavingClient = leavingClients.get(i);
+            final TestClient observer = observers.get(i);
+            waitUntil(() -> leavingClient.isCompleted() && !observer.getClientSet().contains(leavingClient.getId()));
+        }
+
+        disconnectingClients.forEach(TestClient::closeStream);
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            final TestClient disconnectingClient = disconnectingClients.get(i);
+            final TestClient observer = observers.get(i);
+            final long sessionId = disconnectedSessionIds.get(i);
+            waitUntil(() -> !sessionService.hasSession(sessionId) && !observer.getMatchingMessages(message ->
+                    message.getMessageType() == ClientMessageType.LEAVE
+                            && message.getClientId() == disconnectingClient.getId()
+                            && message.getStatusCode() == StatusCode.CLIENT_TIMEOUT).isEmpty());
+            assertThat(observer.getClientSet(), is(Set.of(observer.getId())));
+        }
+    }
+
+    @Test
+    void multiplexedStreamStaysInOrderAcrossShards() {
+        List<TestClient> observers = new ArrayList<>();
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            observers.add(join(1000L + i, partyIds[i], randomId()));
+        }
+        waitUntil(() -> observers.stream().allMatch(observer -> observer.getClientSetSize() == 1));
+        keepAlive(observers);
+
+        // the JOIN messages and the PING are sent back to back, and each party is joined on its own shard
+        TestClient client = testClientFactory.create(MULTIPLEXING_CLIENT_ID);
+        long[] sessionIds = new Random().longs(SHARD_COUNT).toArray();
+        List<ClientMessage> sentMessages = new ArrayList<>();
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            sentMessages.add(joinMessage(MULTIPLEXING_CLIENT_ID, partyIds[i], sessionIds[i]));
+        }
+        sentMessages.add(pingMessage());
+        sentMessages.forEach(client::sendMessage);
+        waitUntil(() -> sentMessages.stream().allMatch(message -> client.isAcked(message)));
+        waitUntil(() -> observers.stream().allMatch(observer -> observer.getClientSet().contains(MULTIPLEXING_CLIENT_ID)));
+
+        // leaving one party keeps the stream and the sessions on the other shards
+        ClientMessage leave = leaveMessage(partyIds[0]);
+        client.sendMessage(leave);
+        waitUntil(() -> client.isAcked(leave) && !observers.get(0).getClientSet().contains(MULTIPLEXING_CLIENT_ID));
+        assertThat(sessionService.hasSession(sessionIds[0]), is(false));
+        assertThat(client.isCompleted(), is(false));
+
+        // a JOIN sent right before the stream closes is still processed, and leaves a resumable session behind
+        final long rejoinedSessionId = randomId();
+        client.sendMessage(joinMessage(MULTIPLEXING_CLIENT_ID, partyIds[0], rejoinedSessionId));
+        client.closeStream();
+        waitUntil(() -> sessionService.hasSession(rejoinedSessionId)
+                && observers.get(0).getClientSet().contains(MULTIPLEXING_CLIENT_ID));
+
+        // and every session of the stream times out on the shard of its party
+        waitUntil(() -> !sessionService.hasSession(rejoinedSessionId)
+                && Arrays.stream(sessionIds).noneMatch(sessionService::hasSession));
+        waitUntil(() -> observers.stream().noneMatch(observer -> observer.getClientSet().contains(MULTIPLEXING_CLIENT_ID)));
+    }
+
+    private TestClient join(long clientId, long partyId, long sessionId) {
+        TestClient client = testClientFactory.create(clientId);
+        client.sendMessage(joinMessage(clientId, partyId, sessionId));
+        return client;
+    }
+
+    // the clients are only pinged from here once joined, since gRPC client streams must not be written concurrently
+    private void keepAlive(List<TestClient> clients) {
+        pinger.scheduleAtFixedRate(() -> clients.forEach(client -> client.sendMessage(pingMessage())),
+                0, 500, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,85 @@
+package ca.ozluminaire.partypresence.messaging;
+
+import ca.ozluminaire.partypresence.client.TestBroker;
+import ca.ozluminaire.partypresence.client.TestClient;
+import ca.ozluminaire.partypresence.client.TestClientFactory;
+import ca.ozluminaire.partypresence.model.SessionState;
+import ca.ozluminaire.partypresence.service.SessionService;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static ca.ozluminaire.partypresence.client.TestBroker.waitUntil;
+import static ca.ozluminaire.partypresence.client.TestMessages.joinMessage;
+import static ca.ozluminaire.partypresence.client.TestMessages.randomId;
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * With transport keepalive, checks that a session on an open stream stays alive without PING messages, and that a
+ * session whose stream was closed by the server, here by the drain timeout, is unbound and times out like after a
+ * client disconnect.
+ */
+@Slf4j
+class TransportKeepaliveIntegrationTest {
+
+    private static final long PARTY_ID = 3003L;
+    private static final int KEEPALIVE_TIMEOUT_SECONDS = 2;
+
+    private TestBroker broker;
+    private SessionService sessionService;
+    private TestClientFactory testClientFactory;
+
+    @BeforeEach
+    void setup() {
+        broker = TestBroker.start(Map.of(
+                "party-presence-message-broker.keepalive-timeout", KEEPALIVE_TIMEOUT_SECONDS,
+                "party-presence-message-broker.transport-keepalive.enabled", true,
+                "party-presence-message-broker.drain.timeout", "1s",
+                "party-presence-message-broker.drain.check-interval", "100ms",
+                "party-presence-message-broker.drain.shutdown-when-drained", false));
+        sessionService = broker.getBean(SessionService.class);
+        testClientFactory = broker.getClientFactory();
+    }
+
+    @AfterEach
+    void teardown() {
+        broker.stop();
+    }
+
+    @Test
+    void openStreamKeepsTheSessionAliveWithoutPings() throws InterruptedException {
+        final long sessionId = randomId();
+        TestClient client = testClientFactory.create(1L);
+        client.sendMessage(joinMessage(1L, PARTY_ID, sessionId));
+        waitUntil(() -> sessionService.hasSession(sessionId));
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(KEEPALIVE_TIMEOUT_SECONDS * 2L));
+
+        assertThat(sessionService.hasSession(sessionId), is(true));
+        assertThat(sessionService.getSession(sessionId).getSessionState(), is(SessionState.ACTIVE));
+        assertThat(client.isCompleted(), is(false));
+    }
+
+    @Test
+    void sessionOnAStreamClosedByTheServerTimesOut() {
+        final long sessionId = randomId();
+        TestClient client = testClientFactory.create(2L);
+        client.sendMessage(joinMessage(2L, PARTY_ID, sessionId));
+        waitUntil(() -> sessionService.hasSession(sessionId));
+
+        // the client ignores the DRAIN message, so its stream is closed by the drain timeout
+        broker.getBean(DrainService.class).drain(Duration.ofMillis(100));
+        waitUntil(client::isCompleted);
+        await().atMost(1, TimeUnit.SECONDS).pollInterval(20, TimeUnit.MILLISECONDS).until(() ->
+                sessionService.getSession(sessionId).getSessionState() == SessionState.INACTIVE);
+
+        waitUntil(() -> !sessionService.hasSession(sessionId));
+    }
+}
@@ -0,0 +1,60 @@
+package ca.ozluminaire.partypresence.model;
+
+import ca.ozluminaire.partypresence.ClientSessionIdEntry;
+import ca.ozluminaire.partypresence.StatusCode;
+import ca.ozluminaire.partypresence.service.OutboundLaneMetrics;
+import ca.ozluminaire.partypresence.service.OutboundMemoryBudget;
+import ca.ozluminaire.partypresence.util.MessageIdGenerator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Checks how the party handles a session that timed out while a JOIN was resuming it: the expired session is not
+ * added back, and once replaced by a new session with the same ID, removing it leaves the new session in the party.
+ */
+class PartyTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final OutboundMemoryBudget outboundMemoryBudget = new OutboundMemoryBudget(1 << 20, meterRegistry);
+    private final Party party = new Party(1L, false, new MessageIdGenerator(0));
+    private final Client client = new Client(2L);
+
+    @Test
+    void expiredSessionIsNotAdded() {
+        Session session = session(10L);
+        session.setSessionState(SessionState.EXPIRED);
+        party.addSession(session, List.of());
+
+        assertThat(party.getSessions(), is(empty()));
+        assertThat(party.getSnapshot().getParticipantClientIdsList(), is(empty()));
+    }
+
+    @Test
+    void replacedSessionIsNotRemovedInPlaceOfItsReplacement() {
+        Session timedOutSession = session(10L);
+        party.addSession(timedOutSession, List.of());
+        timedOutSession.setSessionState(SessionState.EXPIRED);
+
+        Session newSession = session(10L);
+        party.addSession(newSession, List.of());
+        party.removeSession(timedOutSession, StatusCode.CLIENT_TIMEOUT);
+
+        assertThat(party.getSessions(), contains(sameInstance(newSession)));
+        assertThat(client.getSessions(), contains(sameInstance(newSession)));
+        assertThat(party.getSnapshot().getParticipantClientIdsList(), contains(
+                ClientSessionIdEntry.newBuilder().setClientId(2L).addSessionId(10L).build()));
+
+        party.removeSession(newSession, StatusCode.OK);
+        assertThat(party.getSessions(), is(empty()));
+        assertThat(client.getSessions(), is(empty()));
+    }
+
+    private Session session(long id) {
+        return new Session(id, client, party, outboundMemoryBudget, new OutboundLaneMetrics(meterRegistry));
+    }
+}
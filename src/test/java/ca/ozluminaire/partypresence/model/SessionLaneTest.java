@@ -0,0 +1,204 @@
+package ca.ozluminaire.partypresence.model;
+
+import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
+import ca.ozluminaire.partypresence.service.OutboundLaneMetrics;
+import ca.ozluminaire.partypresence.service.OutboundMemoryBudget;
+import ca.ozluminaire.partypresence.util.MessageIdGenerator;
+import io.grpc.stub.CallStreamObserver;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Queues messages on a session bound to a stream whose readiness is switched by hand, and checks the order the
+ * control and presence lanes send them in, how presence messages collapse while they wait, and that the backlog
+ * accounting goes back to zero.
+ */
+class SessionLaneTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final OutboundMemoryBudget outboundMemoryBudget = new OutboundMemoryBudget(1 << 20, meterRegistry);
+    private final RecordingStreamObserver responseObserver = new RecordingStreamObserver();
+
+    private Session session;
+    private long nextMessageId = 1;
+
+    @BeforeEach
+    void setup() {
+        Party party = new Party(1L, false, new MessageIdGenerator(0));
+        session = new Session(10L, new Client(1L), party, outboundMemoryBudget, new OutboundLaneMetrics(meterRegistry));
+        session.setResponseObserver(responseObserver);
+        session.setSessionState(SessionState.ACTIVE);
+    }
+
+    @Test
+    void ackIsSentBeforeQueuedPresenceMessages() {
+        ClientMessage join = presenceMessage(ClientMessageType.JOIN, 2L, 20L);
+        ClientMessage ack = message(ClientMessageType.ACK);
+        responseObserver.ready = false;
+        session.queueMessage(join);
+        session.sendQueuedMessages();
+        assertThat("presence messages wait for the transport", responseObserver.messages, is(empty()));
+
+        session.sendAck(ack);
+        assertThat("the ACK does not wait", responseObserver.messages, contains(ack));
+
+        responseObserver.ready = true;
+        session.sendQueuedMessages();
+        assertThat(responseObserver.messages, contains(ack, join));
+    }
+
+    @Test
+    void controlMessagesAreSentBeforePresenceMessages() {
+        ClientMessage join = presenceMessage(ClientMessageType.JOIN, 2L, 20L);
+        ClientMessage error = message(ClientMessageType.ERROR);
+        session.queueMessage(join);
+        session.queueMessage(error);
+        session.sendQueuedMessages();
+
+        assertThat(responseObserver.messages, contains(error, join));
+    }
+
+    @Test
+    void joinAndLeaveCollapsePerSession() {
+        ClientMessage firstJoin = presenceMessage(ClientMessageType.JOIN, 2L, 20L);
+        ClientMessage firstLeave = presenceMessage(ClientMessageType.LEAVE, 2L, 20L);
+        ClientMessage otherSessionJoin = presenceMessage(ClientMessageType.JOIN, 2L, 21L);
+        ClientMessage otherClientJoin = presenceMessage(ClientMessageType.JOIN, 3L, 30L);
+        responseObserver.ready = false;
+        session.queueMessage(firstJoin);
+        session.queueMessage(otherSessionJoin);
+        session.queueMessage(firstLeave);
+        session.queueMessage(otherClientJoin);
+
+        responseObserver.ready = true;
+        session.sendQueuedMessages();
+
+        assertThat("only the latest message of each client session is sent",
+                responseObserver.messages, contains(otherSessionJoin, firstLeave, otherClientJoin));
+        assertThat(collapsedCount(), is(1.0));
+    }
+
+    @Test
+    void listSupersedesEarlierPresenceMessages() {
+        ClientMessage join = presenceMessage(ClientMessageType.JOIN, 2L, 20L);
+        ClientMessage leave = presenceMessage(ClientMessageType.LEAVE, 3L, 30L);
+        ClientMessage list = message(ClientMessageType.LIST);
+        ClientMessage laterJoin = presenceMessage(ClientMessageType.JOIN, 4L, 40L);
+        responseObserver.ready = false;
+        session.queueMessage(join);
+        session.queueMessage(leave);
+        session.queueMessage(list);
+        session.queueMessage(laterJoin);
+
+        responseObserver.ready = true;
+        session.sendQueuedMessages();
+
+        assertThat(responseObserver.messages, contains(list, laterJoin));
+        assertThat(collapsedCount(), is(2.0));
+    }
+
+    @Test
+    void backlogIsReleasedWhenSentMessagesAreAcked() {
+        responseObserver.ready = false;
+        session.queueMessage(presenceMessage(ClientMessageType.JOIN, 2L, 20L));
+        session.queueMessage(presenceMessage(ClientMessageType.LEAVE, 2L, 20L));
+        session.queueMessage(presenceMessage(ClientMessageType.JOIN, 3L, 30L));
+        session.queueMessage(message(ClientMessageType.ERROR));
+        assertThat(session.getBacklogBytes(), greaterThan(0L));
+
+        responseObserver.ready = true;
+        session.sendQueuedMessages();
+        assertThat("sent messages stay inflight until acked", session.getBacklogBytes(), greaterThan(0L));
+
+        for (ClientMessage message : responseObserver.messages) {
+            assertThat(session.ackMessage(message.getMessageId()), is(true));
+        }
+        assertThat(session.getBacklogBytes(), is(0L));
+        assertThat(outboundMemoryBudget.getUsedBytes(), is(0L));
+    }
+
+    @Test
+    void backlogIsReleasedWhenQueuesAreCleared() {
+        session.queueMessage(presenceMessage(ClientMessageType.JOIN, 2L, 20L));
+        session.sendQueuedMessages();
+        responseObserver.ready = false;
+        session.queueMessage(presenceMessage(ClientMessageType.JOIN, 3L, 30L));
+        session.queueMessage(presenceMessage(ClientMessageType.LEAVE, 3L, 30L));
+        session.queueMessage(message(ClientMessageType.LIST));
+        session.queueMessage(presenceMessage(ClientMessageType.JOIN, 4L, 40L));
+
+        // queues are only cleared once the session is no longer bound to a stream
+        session.clearQueues();
+        assertThat(session.getBacklogBytes(), greaterThan(0L));
+
+        session.setSessionState(SessionState.INACTIVE);
+        session.clearQueues();
+        assertThat(session.getBacklogBytes(), is(0L));
+        assertThat(outboundMemoryBudget.getUsedBytes(), is(0L));
+    }
+
+    private double collapsedCount() {
+        return meterRegistry.get("broker.outbound.collapsed").counter().count();
+    }
+
+    private ClientMessage presenceMessage(ClientMessageType type, long clientId, long sessionId) {
+        return ClientMessage.newBuilder()
+                .setMessageType(type).setMessageId(nextMessageId++)
+                .setPartyId(1L).setClientId(clientId).setSessionId(sessionId)
+                .build();
+    }
+
+    private ClientMessage message(ClientMessageType type) {
+        return ClientMessage.newBuilder()
+                .setMessageType(type).setMessageId(nextMessageId++).setPartyId(1L)
+                .build();
+    }
+
+    private static final class RecordingStreamObserver extends CallStreamObserver<ClientMessage> {
+
+        private final List<ClientMessage> messages = new ArrayList<>();
+        private boolean ready = true;
+
+        @Override
+        public void onNext(ClientMessage value) {
+            messages.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() {
+        }
+
+        @Override
+        public void request(int count) {
+        }
+
+        @Override
+        public void setMessageCompression(boolean enable) {
+        }
+    }
+}
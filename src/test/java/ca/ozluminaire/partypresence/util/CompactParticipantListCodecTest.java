@@ -0,0 +1,96 @@
+package ca.ozluminaire.partypresence.util;
+
+import ca.ozluminaire.partypresence.ClientMessage;
+import ca.ozluminaire.partypresence.ClientMessageType;
+import ca.ozluminaire.partypresence.ClientSessionIdEntry;
+import ca.ozluminaire.partypresence.CompactParticipantList;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * Checks that compact participant lists decode to the same membership, and are at least a tenth smaller than the
+ * standard encoding for party sizes from 100 to 10k clients. The encode cost is measured by ParticipantListBenchmark.
+ */
+@Slf4j
+class CompactParticipantListCodecTest {
+
+    private static final int[] PARTY_SIZES = {100, 1_000, 10_000};
+    private static final double MAX_COMPACT_RATIO = 0.9;
+
+    private final Random random = new Random();
+
+    @Test
+    void compactListRoundTrips() {
+        List<ClientSessionIdEntry> entries = randomEntries(1_000);
+        // unsigned ordering must survive negative IDs
+        entries.add(ClientSessionIdEntry.newBuilder().setClientId(-1L).addSessionId(-1L).addSessionId(1L).build());
+        entries.add(ClientSessionIdEntry.newBuilder().setClientId(0L).addSessionId(Long.MIN_VALUE).build());
+
+        List<ClientSessionIdEntry> decoded = CompactParticipantListCodec.decode(
+                CompactParticipantListCodec.encode(entries));
+
+        assertThat(normalize(decoded), equalTo(normalize(entries)));
+    }
+
+    @Test
+    void compactListSavesAtLeastATenthOfTheStandardList() {
+        for (int partySize : PARTY_SIZES) {
+            List<ClientSessionIdEntry> entries = randomEntries(partySize);
+            ClientMessage standardList = ClientMessage.newBuilder()
+                    .setMessageType(ClientMessageType.LIST)
+                    .addAllParticipantClientIds(entries)
+                    .build();
+            ClientMessage compactList = ClientMessage.newBuilder()
+                    .setMessageType(ClientMessageType.LIST)
+                    .setCompactParticipants(CompactParticipantListCodec.encode(entries))
+                    .build();
+
+            // the standard entry takes about 22 bytes per client with the tags and lengths, and the compact one about
+            // 19 bytes with 100 clients, going down as the client ID deltas get shorter
+            double ratio = (double) compactList.getSerializedSize() / standardList.getSerializedSize();
+            log.info(String.format("%d clients: %d standard bytes, %d compact bytes, ratio %.3f", partySize,
+                    standardList.getSerializedSize(), compactList.getSerializedSize(), ratio));
+            assertThat(ratio, lessThanOrEqualTo(MAX_COMPACT_RATIO));
+        }
+    }
+
+    // one session per client, with every tenth client on a second device
+    private List<ClientSessionIdEntry> randomEntries(int clientCount) {
+        List<ClientSessionIdEntry> entries = new ArrayList<>(clientCount);
+        for (int i = 0; i < clientCount; i++) {
+            ClientSessionIdEntry.Builder entry = ClientSessionIdEntry.newBuilder()
+                    .setClientId(random.nextLong())
+                    .addSessionId(random.nextLong());
+            if (i % 10 == 0) {
+                entry.addSessionId(random.nextLong());
+            }
+            entries.add(entry.build());
+        }
+        return entries;
+    }
+
+    private static Set<List<Long>> normalize(List<ClientSessionIdEntry> entries) {
+        Set<List<Long>> normalized = new HashSet<>();
+        for (ClientSessionIdEntry entry : entries) {
+            List<Long> clientAndSessions = new ArrayList<>();
+            clientAndSessions.add(entry.getClientId());
+            clientAndSessions.addAll(entry.getSessionIdList().stream()
+                    .sorted(Comparator.naturalOrder())
+                    .collect(Collectors.toList()));
+            normalized.add(clientAndSessions);
+        }
+        return normalized;
+    }
+}
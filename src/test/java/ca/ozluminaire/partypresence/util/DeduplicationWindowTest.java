@@ -0,0 +1,34 @@
+package ca.ozluminaire.partypresence.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+class DeduplicationWindowTest {
+
+    @Test
+    void rejectsIdsInTheWindow() {
+        DeduplicationWindow window = new DeduplicationWindow(4);
+
+        assertThat("a new ID", window.add(1L), is(true));
+        assertThat("the same ID again", window.add(1L), is(false));
+        assertThat("another new ID", window.add(2L), is(true));
+        assertThat("the first ID after another one", window.add(1L), is(false));
+    }
+
+    @Test
+    void evictsTheOldestIdWhenFull() {
+        DeduplicationWindow window = new DeduplicationWindow(4);
+        for (long id = 1; id <= 4; id++) {
+            window.add(id);
+        }
+
+        assertThat("an ID over the capacity", window.add(5L), is(true));
+        assertThat("the evicted oldest ID is new again", window.add(1L), is(true));
+        // adding 1 again evicted 2, the next oldest
+        assertThat("the next evicted ID", window.add(2L), is(true));
+        assertThat("IDs still in the window", window.add(4L), is(false));
+        assertThat("IDs still in the window", window.add(5L), is(false));
+    }
+}
@@ -0,0 +1,95 @@
+package ca.ozluminaire.partypresence.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that message IDs are unique across threads, ordered within a thread and across stripes, and carry the node ID.
+ */
+class MessageIdGeneratorTest {
+
+    private static final int THREAD_COUNT = 32;
+    private static final int IDS_PER_THREAD = 50_000;
+
+    @Test
+    void idsAreUniqueAndMonotonicPerThread() throws Exception {
+        MessageIdGenerator messageIdGenerator = new MessageIdGenerator(5);
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        List<Future<long[]>> futures = new ArrayList<>();
+        // more threads than stripes, so that threads share stripes
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            futures.add(executor.submit(generate(messageIdGenerator, IDS_PER_THREAD)));
+        }
+
+        long[] allIds = new long[THREAD_COUNT * IDS_PER_THREAD];
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            long[] ids = futures.get(i).get();
+            for (int j = 1; j < ids.length; j++) {
+                assertThat("IDs of a thread are increasing", ids[j], greaterThan(ids[j - 1]));
+            }
+            System.arraycopy(ids, 0, allIds, i * IDS_PER_THREAD, IDS_PER_THREAD);
+        }
+        executor.shutdown();
+
+        assertThat("IDs are unique across threads", Arrays.stream(allIds).distinct().count(), is((long) allIds.length));
+        assertThat("IDs are positive", Arrays.stream(allIds).min().getAsLong(), greaterThan(0L));
+        assertThat("IDs carry the node ID", Arrays.stream(allIds).allMatch(id -> MessageIdGenerator.nodeIdOf(id) == 5), is(true));
+    }
+
+    @Test
+    void idsAreOrderedAcrossStripes() throws Exception {
+        MessageIdGenerator messageIdGenerator = new MessageIdGenerator(0);
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+
+        // each ID is generated on another pool thread a few milliseconds after the previous one
+        long previousId = 0;
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            long id = executor.submit(generate(messageIdGenerator, 1)).get()[0];
+            assertThat("an ID generated later on another stripe", id, greaterThan(previousId));
+            previousId = id;
+            Thread.sleep(2);
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    void stripeClockStaysWithinTheMaximumLead() throws Exception {
+        MessageIdGenerator messageIdGenerator = new MessageIdGenerator(0);
+
+        // far more IDs than a stripe can generate in the maximum lead
+        long[] ids = generate(messageIdGenerator, 600_000).call();
+
+        assertThat("the last ID is at most the maximum lead ahead of the clock",
+                MessageIdGenerator.timestampMillisOf(ids[ids.length - 1]) - System.currentTimeMillis(),
+                lessThanOrEqualTo(MessageIdGenerator.MAX_LEAD_MILLIS));
+        assertThat("IDs stay unique while waiting for the clock",
+                Arrays.stream(ids).distinct().count(), is((long) ids.length));
+    }
+
+    @Test
+    void rejectsNodeIdsOutOfRange() {
+        assertThrows(IllegalArgumentException.class, () -> new MessageIdGenerator(-1));
+        assertThrows(IllegalArgumentException.class, () -> new MessageIdGenerator(MessageIdGenerator.MAX_NODE_ID + 1));
+    }
+
+    private static Callable<long[]> generate(MessageIdGenerator messageIdGenerator, int count) {
+        return () -> {
+            long[] ids = new long[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = messageIdGenerator.nextId();
+            }
+            return ids;
+        };
+    }
+}
@@ -0,0 +1,66 @@
+package ca.ozluminaire.partypresence.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Drives the rate limiter with a manual clock and checks the burst allowance and the refill rate.
+ */
+class RateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicLong clock = new AtomicLong(123_456_789L);
+
+    @Test
+    void allowsTheBurstAtOnce() {
+        RateLimiter rateLimiter = new RateLimiter(10, 5, clock::get);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat("permit " + i + " of the burst", rateLimiter.tryAcquire(), is(true));
+        }
+        assertThat("the permit after the burst", rateLimiter.tryAcquire(), is(false));
+        assertThat("rejected permits are not counted", rateLimiter.tryAcquire(), is(false));
+    }
+
+    @Test
+    void refillsAtTheConfiguredRate() {
+        RateLimiter rateLimiter = new RateLimiter(10, 5, clock::get);
+        for (int i = 0; i < 5; i++) {
+            rateLimiter.tryAcquire();
+        }
+
+        clock.addAndGet(SECOND / 10 - 1);
+        assertThat("no permit before the emission interval", rateLimiter.tryAcquire(), is(false));
+        clock.addAndGet(1);
+        assertThat("one permit after the emission interval", rateLimiter.tryAcquire(), is(true));
+        assertThat("only one permit after the emission interval", rateLimiter.tryAcquire(), is(false));
+
+        // a long pause refills the burst, but not more than the burst
+        clock.addAndGet(10 * SECOND);
+        for (int i = 0; i < 5; i++) {
+            assertThat("permit " + i + " of the refilled burst", rateLimiter.tryAcquire(), is(true));
+        }
+        assertThat("the permit after the refilled burst", rateLimiter.tryAcquire(), is(false));
+    }
+
+    @Test
+    void isFullOnceTheBurstRefills() {
+        RateLimiter rateLimiter = new RateLimiter(10, 5, clock::get);
+        assertThat("a new bucket is full", rateLimiter.isFull(), is(true));
+
+        rateLimiter.tryAcquire();
+        rateLimiter.tryAcquire();
+        assertThat("a used bucket is not full", rateLimiter.isFull(), is(false));
+
+        clock.addAndGet(SECOND / 10);
+        assertThat("a partly refilled bucket is not full", rateLimiter.isFull(), is(false));
+        clock.addAndGet(SECOND / 10);
+        assertThat("a refilled bucket is full", rateLimiter.isFull(), is(true));
+    }
+}